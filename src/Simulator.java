@@ -49,25 +49,57 @@
  * alessandro.casagrande.4@studenti.unipd.it
  */
 
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.LinkedList;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author Alessandro Casagrande - 2066716
  * @version 1.3 2024/01/16
  */
 public class Simulator {
-    static int selectedServerNumber = -1;
 
     public static void main(String[] args) {
-        // Events keep sorted by their arrival time
-        PriorityQueue<Event> timeLine = new PriorityQueue<Event>();
         // --------------------------------------------------------------------
         // -------------------------------------------------- Reading from file
         String inFilePath = args[0];
@@ -78,6 +110,113 @@ public class Simulator {
             System.out.println("Specified file does not exist! Quitting execution...");
             return;
         }
+        // optional settings, given after the input file:
+        // --hybrid=T      servers with more than T waiting Jobs switch to the
+        //                 fluid mode (see Simulation); not when the Events
+        //                 are printed
+        // --hybrid-error  runs also the exact engine and reports the error
+        //                 of the hybrid one (on the standard error)
+        // --stream=F      writes a JSON line with the running estimates to the
+        //                 file F ('-' ≡ standard error) after each run; the
+        //                 line "stop" on the standard input ends the
+        //                 simulation after the current run (at least one
+        //                 run is always simulated)
+        // --stream-batch=B  writes also a JSON line every B Jobs of a run;
+        //                 "stop" then ends the current run at the end of a
+        //                 batch
+        // --pregen[=C]    pregenerates the arrivals on another thread, C
+        //                 interarrival times at once for each Category
+        //                 (default 1024); only with the round-robin policy.
+        //                 It needs a spare processor: with a single one the
+        //                 arrivals are generated in-line as usual
+        // --optimise=O    instead of simulating, tunes the weights φ and τ of
+        //                 the custom policy for the objective O: ET, AQT or
+        //                 AQT:w_1,...,w_H (weighted AQT of the Categories);
+        //                 only their ratio matters, so φ + τ = 1
+        // --optimise-iterations=M  number of SPSA iterations (default 20);
+        //                 the final comparison only uses the simulations
+        //                 left under a grid search with the same step, so
+        //                 beyond about 30 iterations it is skipped
+        // --cache=D       keeps the results in the directory D, and reuses
+        //                 them (also the single runs) for the same input;
+        //                 only for the exact engine, without streaming; to
+        //                 share it, D must be writable by all its users
+        // --cache-size=M  maximum size of the cache, in MB (default 64)
+        // --analytic[=E]  with round-robin, prints the queueing theory
+        //                 estimates instead of simulating, if their relative
+        //                 error bound is at most E (default 0.05); with
+        //                 --stream=F they are written as a single
+        //                 "analytic" line, followed by the "end" one with
+        //                 0 repetitions
+        int hybridThreshold = 0;
+        boolean hybridError = false;
+        String streamPath = null;
+        int streamBatch = 0;
+        int pregenChunk = 0;
+        String objective = null;
+        int optimiseIterations = 20;
+        String cacheDir = null;
+        long cacheSize = 64;
+        double analyticTolerance = 0;
+        for (int a = 1; a < args.length; a++) {
+            if (args[a].startsWith("--hybrid=")) {
+                hybridThreshold = Integer.parseInt(args[a].substring("--hybrid=".length()));
+                if (hybridThreshold <= 0) {
+                    System.out.println("The hybrid threshold must be positive! Quitting execution...");
+                    return;
+                }
+            } else if (args[a].equals("--hybrid-error")) {
+                hybridError = true;
+            } else if (args[a].startsWith("--stream=")) {
+                streamPath = args[a].substring("--stream=".length());
+            } else if (args[a].startsWith("--optimise=")) {
+                objective = args[a].substring("--optimise=".length());
+            } else if (args[a].startsWith("--optimise-iterations=")) {
+                optimiseIterations = Integer.parseInt(args[a].substring("--optimise-iterations=".length()));
+                if (optimiseIterations < 1) {
+                    System.out.println("The number of iterations must be positive! Quitting execution...");
+                    return;
+                }
+            } else if (args[a].equals("--analytic")) {
+                analyticTolerance = 0.05;
+            } else if (args[a].startsWith("--analytic=")) {
+                analyticTolerance = Double.parseDouble(args[a].substring("--analytic=".length()));
+            } else if (args[a].startsWith("--cache=")) {
+                cacheDir = args[a].substring("--cache=".length());
+            } else if (args[a].startsWith("--cache-size=")) {
+                cacheSize = Long.parseLong(args[a].substring("--cache-size=".length()));
+                if (cacheSize <= 0) {
+                    System.out.println("The cache size must be positive! Quitting execution...");
+                    return;
+                }
+            } else if (args[a].equals("--pregen")) {
+                pregenChunk = 1024;
+            } else if (args[a].startsWith("--pregen=")) {
+                pregenChunk = Integer.parseInt(args[a].substring("--pregen=".length()));
+                if (pregenChunk < 1 || pregenChunk > ArrivalStream.MAX_CHUNK) {
+                    System.out.println("The pregeneration chunk must be between 1 and "
+                            + ArrivalStream.MAX_CHUNK + "! Quitting execution...");
+                    return;
+                }
+            } else if (args[a].startsWith("--stream-batch=")) {
+                streamBatch = Integer.parseInt(args[a].substring("--stream-batch=".length()));
+                if (streamBatch <= 0) {
+                    System.out.println("The stream batch must be positive! Quitting execution...");
+                    return;
+                }
+            } else {
+                System.out.println("Unknown option " + args[a] + "! Quitting execution...");
+                return;
+            }
+        }
+        if (hybridError && hybridThreshold == 0) {
+            System.out.println("Option --hybrid-error needs --hybrid=T! Quitting execution...");
+            return;
+        }
+        if (streamBatch > 0 && streamPath == null) {
+            System.out.println("Option --stream-batch needs --stream=F! Quitting execution...");
+            return;
+        }
         Scanner line = new Scanner(inFile.nextLine());
         line.useDelimiter(",");
         // reading the first line
@@ -108,13 +247,504 @@ public class Simulator {
             }
             i++;
         }
+        // the Events printed need the end of execution of each Job, which
+        // is not simulated in the fluid mode
+        if (hybridThreshold > 0 && R == 1 && N <= 10 && P == false) {
+            System.out.println("Option --hybrid cannot be used when the Events are printed! Quitting execution...");
+            return;
+        }
+        // the custom policy reads the time line, which holds different
+        // Events when the arrivals are pregenerated
+        if (pregenChunk > 0 && P == true) {
+            System.out.println("Option --pregen needs the round-robin policy! Quitting execution...");
+            return;
+        }
+        // --------------------------------------------------------------------
+        // ------------------------------------------------ Policy optimisation
+        if (objective != null) {
+            PolicyOptimiser optimiser;
+            try {
+                optimiser = new PolicyOptimiser(K, H, N, R, generationParam, objective);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage() + " Quitting execution...");
+                return;
+            }
+            System.out.print(optimiser.optimise(optimiseIterations));
+            return;
+        }
         // first line output print
         System.out.println(K + "," + H + "," + N + "," + R + "," + (P ? 1 : 0));
+        ResultPublisher publisher = null;
+        if (streamPath != null) {
+            try {
+                publisher = new ResultPublisher(streamPath.equals("-")
+                        ? System.err
+                        : new PrintStream(new FileOutputStream(streamPath), true));
+            } catch (FileNotFoundException e) {
+                System.out.println("Specified stream file cannot be created! Quitting execution...");
+                return;
+            }
+        }
+        // --------------------------------------------------------------------
+        // -------------------------------------------------- Analytic estimate
+        // (not when the Events are printed, they need the simulation)
+        if (analyticTolerance > 0 && P == false && !(R == 1 && N <= 10)) {
+            AnalyticEstimator estimator = new AnalyticEstimator(K, H, N, R, generationParam);
+            if (estimator.getErrorBound() <= analyticTolerance) {
+                System.out.println(estimator.getEndTime());
+                System.out.println(estimator.getQueuingTime());
+                for (int h = 0; h < H; h++) {
+                    System.out.println(estimator.getJobs(h) + "," + estimator.getQueuingTime()
+                            + "," + estimator.getServiceTime(h));
+                }
+                System.err.println("analytic: " + estimator.getModel() + ", relative error bound "
+                        + estimator.getErrorBound() + " (ET " + estimator.getEndTimeErrorBound()
+                        + ", AQT " + estimator.getQueuingTimeErrorBound() + ")");
+                if (publisher != null) {
+                    // no run is simulated
+                    publisher.publish(analyticRecord(H, estimator));
+                    publisher.publish("{\"type\":\"end\",\"repetitions\":0,\"requested\":" + R
+                            + ",\"stopped\":false,\"partial\":false}");
+                    publisher.close();
+                }
+                return;
+            }
+            System.err.println("analytic: " + estimator.getModel() + ", relative error bound "
+                    + estimator.getErrorBound() + " (ET " + estimator.getEndTimeErrorBound()
+                    + ", AQT " + estimator.getQueuingTimeErrorBound() + ") exceeds "
+                    + analyticTolerance + ", simulating");
+        }
+        // --------------------------------------------------------------------
+        // ------------------------------------------------------- Result cache
+        // the output is determined by the input, so it can be reused; the
+        // runs are cached apart, to be reused also with a different R
+        // (not when the Events are printed, as they are not cached)
+        ResultCache cache = null;
+        String outputName = null, runsName = null;
+        List<String> runRecords = new ArrayList<String>();
+        if (cacheDir != null && hybridThreshold == 0 && pregenChunk == 0 && streamPath == null
+                && !(R == 1 && N <= 10 && P == false)) {
+            StringBuilder config = new StringBuilder(K + "," + H + "," + N + "," + (P ? 1 : 0));
+            for (int h = 0; h < H; h++) {
+                config.append("\n").append(generationParam[h][0]).append(",").append(generationParam[h][1])
+                        .append(",").append((long) generationParam[h][2])
+                        .append(",").append((long) generationParam[h][3]);
+            }
+            outputName = ResultCache.key(config + "\nR=" + R) + ".out";
+            runsName = ResultCache.key(config.toString()) + ".runs";
+            try {
+                cache = new ResultCache(Paths.get(cacheDir), cacheSize * 1024 * 1024);
+                List<String> output = cache.read(outputName);
+                if (output != null) {
+                    for (String result : output) {
+                        System.out.println(result);
+                    }
+                    return;
+                }
+                List<String> records = cache.read(runsName);
+                if (records != null) {
+                    runRecords = records;
+                }
+            } catch (IOException e) {
+                System.err.println("cache: " + e.getMessage());
+                cache = null;
+            }
+        }
+        // --------------------------------------------------------------------
+        // --------------------------------------------------------- Simulation
+        Simulation simulation = new Simulation(K, H, N, R, P, generationParam);
+        simulation.setHybridThreshold(hybridThreshold);
+        if (pregenChunk > 0) {
+            // the two threads would only take turns on a single processor
+            if (Runtime.getRuntime().availableProcessors() > 1) {
+                simulation.setPregenerated(pregenChunk);
+            } else {
+                System.err.println("pregen: a single processor, generating the arrivals in-line");
+            }
+        }
+        if (publisher != null) {
+            publisher.listenForStop(System.in);
+            simulation.setPublisher(publisher, streamBatch);
+        }
+        // runs found in the cache are restored instead of simulated
+        int runs = 0;
+        try {
+            while (runs < R && runs < runRecords.size()) {
+                simulation.restoreRepetition(runs, runRecords.get(runs));
+                runs++;
+            }
+        } catch (IOException e) {
+            System.err.println("cache: " + e.getMessage());
+            simulation = new Simulation(K, H, N, R, P, generationParam);
+            runRecords = new ArrayList<String>();
+            runs = 0;
+        }
+        final int cachedRuns = runRecords.size();
+        // R repetitions, unless the stream consumer stops the simulation
+        // earlier: at least one run is simulated, the last one possibly only
+        // in part (see Simulation.isStopped)
+        while (runs < R && (runs == 0 || publisher == null || !publisher.isStopRequested())) {
+            simulation.runRepetition(runs++);
+            if (cache != null && runs > runRecords.size()) {
+                runRecords.add(simulation.saveRepetition(runs - 1));
+            }
+            if (publisher != null) {
+                publisher.publish(repetitionRecord(runs, R, H, simulation));
+            }
+            if (simulation.isStopped()) {
+                break;
+            }
+        }
+        if (publisher != null) {
+            // the first line of the output keeps the R requested, while the
+            // averages cover only the runs given here
+            publisher.publish("{\"type\":\"end\",\"repetitions\":" + runs + ",\"requested\":" + R
+                    + ",\"stopped\":" + (runs < R || simulation.isStopped())
+                    + ",\"partial\":" + simulation.isStopped() + "}");
+            publisher.close();
+        }
+        // --------------------------------------------------------------------
+        // --------------------------------------------- Remaining Output Print
+        // one each line:
+        // End Time (average over R runs)
+        // Average Queuing Time (average over R runs)
+        // for each Category:
+        // - number of simulated Job of that Category
+        // - Average Queuing Time
+        // - Average service time of the simulated Jobs
+        // (all averages over R runs; if the stream consumer stopped the
+        // simulation, over the runs simulated instead, while the first line
+        // still gives R: the "end" stream record tells how many they are, and
+        // whether the last one was stopped before its end)
+        List<String> results = new ArrayList<String>();
+        results.add(String.valueOf(ET(runs, simulation.getEndTimes())));
+        results.add(String.valueOf(AQT_all(runs, simulation.getAvgQueuingTimes())));
+        for (int h = 0; h < H; h++) {
+            results.add(simulation.getCntCatJobs()[h] / runs
+                    + "," + AQT(runs, simulation.getAvgQueuingTimesCategory(), h)
+                    + "," + AST(runs, simulation.getAvgServiceTimesCategory(), h));
+        }
+        for (String result : results) {
+            System.out.println(result);
+        }
+        if (cache != null) {
+            try {
+                cache.write(outputName, results);
+                if (runRecords.size() > cachedRuns) {
+                    cache.write(runsName, runRecords);
+                }
+            } catch (IOException e) {
+                System.err.println("cache: " + e.getMessage());
+            }
+        }
+        // --------------------------------------------------------------------
+        // ------------------------------------------------- Hybrid error print
+        if (hybridThreshold > 0 && hybridError && simulation.isStopped()) {
+            System.err.println("hybrid: run stopped before its end, no error report");
+        } else if (hybridThreshold > 0 && hybridError) {
+            Simulation exact = new Simulation(K, H, N, R, P, generationParam);
+            for (int r = 0; r < runs; r++) {
+                exact.runRepetition(r);
+            }
+            System.err.println("hybrid: " + simulation.getFluidJobs() + " of " + (long) N * runs
+                    + " jobs served in fluid mode");
+            printHybridError("ET", ET(runs, simulation.getEndTimes()), ET(runs, exact.getEndTimes()));
+            printHybridError("AQT", AQT_all(runs, simulation.getAvgQueuingTimes()),
+                    AQT_all(runs, exact.getAvgQueuingTimes()));
+            for (int h = 0; h < H; h++) {
+                printHybridError("AQT[" + h + "]", AQT(runs, simulation.getAvgQueuingTimesCategory(), h),
+                        AQT(runs, exact.getAvgQueuingTimesCategory(), h));
+            }
+        }
+    }
+
+    /**
+     * This function builds the stream record published at the end of a
+     * repetition: the running estimates over the runs completed so far, each
+     * one with the half-width of its 95% confidence interval
+     *
+     * @param runs       the number of runs completed
+     * @param R          the number of runs requested
+     * @param H          the number of Categories
+     * @param simulation the Simulation with the statistics of the runs
+     * @return the record, as a JSON line
+     */
+    private static String repetitionRecord(int runs, int R, int H, Simulation simulation) {
+        StringBuilder record = new StringBuilder("{\"type\":\"repetition\"");
+        record.append(",\"repetition\":").append(runs).append(",\"of\":").append(R);
+        record.append(",\"ET\":").append(estimate(simulation.getEndTimes(), runs));
+        record.append(",\"AQT\":").append(estimate(simulation.getAvgQueuingTimes(), runs));
+        record.append(",\"categories\":[");
+        for (int h = 0; h < H; h++) {
+            record.append(h == 0 ? "{" : ",{");
+            record.append("\"jobs\":").append(simulation.getCntCatJobs()[h] / runs);
+            record.append(",\"AQT\":").append(estimate(simulation.getAvgQueuingTimesCategory()[h], runs));
+            record.append(",\"AST\":").append(estimate(simulation.getAvgServiceTimesCategory()[h], runs));
+            record.append("}");
+        }
+        return record.append("]}").toString();
+    }
+
+    /**
+     * This function builds the stream record of the analytic estimates, each
+     * one with its relative error bound
+     *
+     * @param H         the number of Categories
+     * @param estimator the AnalyticEstimator with the estimates
+     * @return the record, as a JSON line
+     */
+    private static String analyticRecord(int H, AnalyticEstimator estimator) {
+        StringBuilder record = new StringBuilder("{\"type\":\"analytic\"");
+        record.append(",\"model\":\"").append(estimator.getModel()).append("\"");
+        record.append(",\"ET\":{\"mean\":").append(estimator.getEndTime())
+                .append(",\"bound\":").append(estimator.getEndTimeErrorBound()).append("}");
+        record.append(",\"AQT\":{\"mean\":").append(estimator.getQueuingTime())
+                .append(",\"bound\":").append(estimator.getQueuingTimeErrorBound()).append("}");
+        record.append(",\"categories\":[");
+        for (int h = 0; h < H; h++) {
+            record.append(h == 0 ? "{" : ",{");
+            record.append("\"jobs\":").append(estimator.getJobs(h));
+            record.append(",\"AQT\":").append(estimator.getQueuingTime());
+            record.append(",\"AST\":").append(estimator.getServiceTime(h));
+            record.append("}");
+        }
+        return record.append("]}").toString();
+    }
+
+    /**
+     * This function formats the mean of the first values of an array and the
+     * half-width of its 95% confidence interval (Student's t)
+     *
+     * @param values an array of independent observations, one per run or batch
+     * @param count  the number of observations to be considered
+     * @return a JSON object with "mean" and "ci" fields; "ci" is null if
+     *         there are less than 2 observations
+     */
+    static String estimate(double[] values, int count) {
+        double mean = 0;
+        for (int c = 0; c < count; c++) {
+            mean += values[c];
+        }
+        mean /= count;
+        if (count < 2) {
+            return "{\"mean\":" + mean + ",\"ci\":null}";
+        }
+        double variance = 0;
+        for (int c = 0; c < count; c++) {
+            variance += (values[c] - mean) * (values[c] - mean);
+        }
+        variance /= count - 1;
+        return "{\"mean\":" + mean + ",\"ci\":" + tQuantile(count - 1) * Math.sqrt(variance / count) + "}";
+    }
+
+    /**
+     * This function returns the 0.975 quantile of the Student's t
+     * distribution, used for two-sided 95% confidence intervals
+     *
+     * @param df the degrees of freedom, df ≥ 1
+     * @return the quantile: tabulated up to 30 degrees of freedom, otherwise
+     *         from the Cornish-Fisher expansion around the normal one
+     */
+    static double tQuantile(int df) {
+        final double[] table = { 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+                2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+                2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+        if (df <= table.length) {
+            return table[df - 1];
+        }
+        final double z = 1.959964;
+        return z + (z * z * z + z) / (4 * df);
+    }
+
+    /**
+     * This function prints on the standard error the absolute and relative
+     * error of a statistic estimated by the hybrid engine
+     *
+     * @param name   the name of the statistic
+     * @param hybrid the value estimated by the hybrid engine
+     * @param exact  the value estimated by the exact engine
+     */
+    private static void printHybridError(String name, double hybrid, double exact) {
+        double error = hybrid - exact;
+        System.err.println("hybrid: " + name + " " + hybrid + " (exact " + exact + ", error "
+                + error + ", relative " + (exact != 0 ? Math.abs(error / exact) : 0.0) + ")");
+    }
+
+    /**
+     * This function calculates the average of a given array of end times.
+     * 
+     * @param R        the number of end times (number or repetitions)
+     * @param endTimes an array of end times, one value for each repetition
+     * @return the average of the end times.
+     */
+    private static double ET(int R, double[] endTimes) {
+        double sumEndTime = 0;
+        for (int r = 0; r < R; r++) {
+            sumEndTime += endTimes[r];
+        }
+        return sumEndTime / R;
+    }
+
+    /**
+     * This function calculates the average queuing time of a Job
+     * 
+     * @param R               the number of repetitions
+     * @param avgQueuingTimes an array of
+     *                        double values representing the average queuing times
+     *                        for each repetition.
+     *                        The length of the array is R, which is the total
+     *                        number of repetition.
+     * @return the total average queuing time for all repetitions
+     */
+    private static double AQT_all(int R, double[] avgQueuingTimes) {
+        double sumAvgTime = 0;
+        for (int r = 0; r < R; r++) {
+            sumAvgTime += avgQueuingTimes[r];
+        }
+        return sumAvgTime / R;
+    }
+
+    /**
+     * The function calculates the average queuing time for a specific category
+     * based on the given average queuing times and the number of repetitions
+     * 
+     * @param R                       the number of repetitions
+     * @param avgQueuingTimesCategory matrix of doubles. It represents the average
+     *                                queuing times for
+     *                                different Categories throughout each
+     *                                repetition. One Category each row, the average
+     *                                queuing time for a repetition each column
+     * @param nCat                    the category number. It is used
+     *                                to access the specific row in the
+     *                                "avgQueuingTimesCategory" matrix
+     * @return the total average queuing time for a specific
+     *         category.
+     */
+    private static double AQT(int R, double[][] avgQueuingTimesCategory, int nCat) {
+        double sumAvgTime = 0;
+        for (int r = 0; r < R; r++) {
+            sumAvgTime += avgQueuingTimesCategory[nCat][r];
+        }
+        return sumAvgTime / R;
+    }
+
+    /**
+     * The function calculates the average service time for a specific category
+     * based on the given average service times and the number of repetitions
+     * 
+     * @param R                       the number of repetitions
+     * @param avgServiceTimesCategory matrix of doubles. It represents the average
+     *                                service times for different Categories
+     *                                throughout each repetition. One Category each
+     *                                row, the average service time for a repetition
+     *                                each column
+     * @param nCat                    the category number. It is used to access
+     *                                the specific row in the
+     *                                "avgServiceTimesCategory" matrix
+     * @return the total average service time for a specific category.
+     */
+    private static double AST(int R, double[][] avgServiceTimesCategory, int nCat) {
+        double sumAvgTime = 0;
+        for (int r = 0; r < R; r++) {
+            sumAvgTime += avgServiceTimesCategory[nCat][r];
+        }
+        return sumAvgTime / R;
+    }
+}
+
+// =============================================================================
+// OTHER CLASSES
+// =============================================================================
+
+/**
+ * The Simulation class represents the whole simulated system (Categories,
+ * Servers and time line of Events) together with the statistics collected
+ * over the repetitions.
+ *
+ * When an hybrid threshold T is set, a Server whose FIFO queue grows beyond T
+ * Jobs switches to the fluid mode: its queue content is no longer kept Job by
+ * Job, but only as the instant at which all the accepted work will be done
+ * (drain time). Each new Job is served after the work already accepted, so
+ * its queuing time is given analytically by the drain time at its arrival,
+ * without queue nodes or end Events. The Server goes back to the exact
+ * simulation when its backlog drains. Since the service time of a fluid Job
+ * is generated at its arrival instead of at the start of its execution, the
+ * results are not identical to the exact engine ones.
+ */
+class Simulation {
+    private final int K;
+    private final int H;
+    private final int N;
+    private final int R;
+    private final boolean P;
+    private Category[] categories;
+    private Server[] servers;
+    // Events keep sorted by their arrival time
+    private PriorityQueue<Event> timeLine;
+    private int selectedServerNumber = -1;
+    // weights φ and τ of customSP_good
+    private double phi = 0.4;
+    private double tau = 0.6;
+    private int hybridThreshold;
+    private long fluidJobs;
+    // pregenerated arrivals, null if they are scheduled on the time line
+    private ArrivalStream arrivals;
+    // streaming mode: publisher of the batch records, Jobs per batch and
+    // average queuing time of each batch of the current run
+    private ResultPublisher publisher;
+    private int batchSize;
+    private double[] batchMeans;
+    private int currentRun;
+    // true if the consumer stopped the current run at the end of a batch
+    private boolean stopped;
+    // ------------------------------------------------------------------------
+    // --------------------------------------------- Statistics Data Structures
+    // End Times array, one per run
+    private double[] endTimes;
+    // Queuing Times array, one per job
+    private double[] queuingTimes;
+    private int n;
+    // Average Queuing Times array, one per run
+    private double[] avgQueuingTimes;
+    // Queueing Times matrix, divided per Category
+    private double[][] queuingTimesCategory;
+    // Average Queuing Times matrix per Category, one column per run
+    private double[][] avgQueuingTimesCategory;
+    // counter array for the number of Events of each Category
+    private double[] cntCatJobs;
+    // Service Times matrix, divided per Category
+    private double[][] serviceTimesCategory;
+    // number of Jobs registered in the matrices above, one per Category
+    private int[] cntCatTimes;
+    // Average Service Times matrix per Category, one column per run
+    private double[][] avgServiceTimesCategory;
+
+    /**
+     * This constructor initializes a new Simulation object with the given
+     * parameters
+     *
+     * @param K               the number of Servers
+     * @param H               the number of Categories
+     * @param N               the number of Jobs to be simulated in each run
+     * @param R               the number of repetitions of the simulation
+     * @param P               the scheduling policy: false ≡ round-robin;
+     *                        true ≡ custom
+     * @param generationParam matrix with the 4 configuration parameters of each
+     *                        Category (λ arrival, λ service, seed arrival, seed
+     *                        service), one Category each row
+     */
+    public Simulation(int K, int H, int N, int R, boolean P, double[][] generationParam) {
+        this.K = K;
+        this.H = H;
+        this.N = N;
+        this.R = R;
+        this.P = P;
+        this.timeLine = new PriorityQueue<Event>();
         // --------------------------------------------------------------------
         // ------------------------------------------------------ First setting
-        Category categories[] = new Category[H];
+        categories = new Category[H];
         // populating all the Categories with their configuration parameters
-        for (i = 0, j = 0; i < H; i++, j = 0) {
+        for (int i = 0, j = 0; i < H; i++, j = 0) {
             categories[i] = new Category(
                     i,
                     generationParam[i][j++],
@@ -123,402 +753,1785 @@ public class Simulator {
                     (long) (generationParam[i][j++]));
         }
         // creating the Servers instances
-        Server[] servers = new Server[K];
-        for (i = 0; i < K; i++) {
+        servers = new Server[K];
+        for (int i = 0; i < K; i++) {
             servers[i] = new Server(i);
         }
-        // --------------------------------------------------------------------
-        // ----------------------------------------- Statistics Data Structures
-        // End Times array, one per run
-        double[] endTimes = new double[R];
-        // Queuing Times array, one per job
-        double[] queuingTimes = new double[N];
-        int n = 0;
-        // Average Queuing Times array, one per run
-        double[] avgQueuingTimes = new double[R];
-        // Queueing Times matrix, divided per Category
-        double[][] queuingTimesCategory = new double[H][N];
-        // Average Queuing Times matrix per Category, one column per run
-        double[][] avgQueuingTimesCategory = new double[H][R];
-        // counter array for the number of Events of each Category
-        double[] cntCatJobs = new double[H];
-        // Service Times matrix, divided per Category
-        double[][] serviceTimesCategory = new double[H][N];
-        // Average Service Times matrix per Category, one column per run
-        double[][] avgServiceTimesCategory = new double[H][R];
-        // --------------------------------------------------------------------
-        // --------------------------------------------------------- Simulation
-        // R repetitions
-        for (int r = 0; r < R; r++) {
-            // clearing/resetting structures | '-1' means "no data registered"
-            timeLine.clear();
-            for (int c = 0; c < H; c++) {
-                for (int s = 0; s < N; s++) {
-                    queuingTimesCategory[c][s] = -1.0;
-                    serviceTimesCategory[c][s] = -1.0;
+        endTimes = new double[R];
+        queuingTimes = new double[N];
+        avgQueuingTimes = new double[R];
+        queuingTimesCategory = new double[H][N];
+        avgQueuingTimesCategory = new double[H][R];
+        cntCatJobs = new double[H];
+        serviceTimesCategory = new double[H][N];
+        cntCatTimes = new int[H];
+        avgServiceTimesCategory = new double[H][R];
+    }
+
+    /**
+     * This method executes the r-th repetition of the simulation, and stores
+     * its statistics in the r-th column of the related data structures
+     *
+     * @param r the number of the repetition, 0 ≤ r < R
+     */
+    public void runRepetition(int r) {
+        int i;
+        currentRun = r;
+        // clearing/resetting structures
+        timeLine.clear();
+        for (int c = 0; c < H; c++) {
+            cntCatTimes[c] = 0;
+        }
+        // generating the arrival Event of the first Job of each Category
+        // (pregenerated arrivals come from their own stream instead)
+        for (i = 0; i < H && arrivals == null; i++) {
+            Job firstJob = new Job(categories[i]);
+            Event firstEvent = new Event(
+                    false,
+                    categories[i].getInterarrivalTime(),
+                    firstJob);
+            firstJob.setAssociatedEvent(firstEvent);
+            timeLine.add(firstEvent);
+        }
+        // here starts the simulation. Below an explanation of how it works:
+        //
+        // while(timeline has Events to manage)
+        // | newEvent ← timeline.poll()
+        // | if (newEvent is 'arrival of a Job') then
+        // | | process arrival
+        // | | schedule next arrival
+        // | | select Server
+        // | | if (server in fluid mode) then
+        // | | | queue the Job's work after the drain time
+        // | | else if (server available) then
+        // | | | execute Job
+        // | | | schedule end
+        // | | else add Job to Server's queue
+        // | else
+        // | | process end Event
+        // | | manage Server's queue and executions
+        //
+        // meanwhile it'll updates all the statistics needed
+        i = 0;
+        double now = 0;
+        while (!stopped && (!timeLine.isEmpty() || (arrivals != null && i < N))) {
+            Event newEvent = nextEvent(i);
+            now = newEvent.getArrivalTime();
+            // if it is the case, prints the Event extracted (for 2N times)
+            // for each Event it is printed, in order:
+            // time of occurence;
+            // service time, if the event is the end of execution of a Job,
+            // 0 otherwise;
+            // Category of the Job
+            if (R == 1 && N <= 10 && P == false && (i < N || newEvent.getEventType() == true)) {
+                System.out.println(newEvent.getArrivalTime() + ","
+                        + (newEvent.getEventType() ? newEvent.getAssociatedJob().getServiceTime() : 0.0) + ","
+                        + newEvent.getAssociatedJob().getCategory().getCategoryNumber());
+            }
+            if (newEvent.getEventType() == false && i < N) { // new Job arrival
+                Category eCategory = newEvent.getAssociatedJob().getCategory();
+                // updating counter
+                cntCatJobs[eCategory.getCategoryNumber()]++;
+                // schedule next arrival
+                if (arrivals == null) {
+                    Job eventJob = new Job(eCategory);
+                    Event nextEvent = new Event(
+                            false,
+                            newEvent.getArrivalTime() + eCategory.getInterarrivalTime(),
+                            eventJob);
+                    eventJob.setAssociatedEvent(nextEvent);
+                    timeLine.add(nextEvent);
                 }
+                // select Server according to the wanted scheduling policy
+                Server eServer;
+                if (P == false) {
+                    eServer = servers[roundRobin(K)];
+                } else {
+                    // eServer = servers[customSP_bad(servers, newEvent.getArrivalTime())];
+                    eServer = servers[customSP_good(servers, timeLine, newEvent.getArrivalTime())];
+                }
+                if (eServer.isFluid()) { // Server in fluid mode
+                    // the Job will start when all the work already accepted
+                    // by the Server is done
+                    Job fluidJob = newEvent.getAssociatedJob();
+                    fluidJob.setServiceTime(eCategory.getServiceTime());
+                    double start = Math.max(eServer.getDrainTime(), newEvent.getArrivalTime());
+                    recordJob(eCategory.getCategoryNumber(), start - newEvent.getArrivalTime(),
+                            fluidJob.getServiceTime());
+                    eServer.addFluidJob(start + fluidJob.getServiceTime(), fluidJob.getServiceTime());
+                    fluidJobs++;
+                } else if (eServer.getJobInExecution() == null) { // Server available
+                    newEvent.getAssociatedJob().setServiceTime(eCategory.getServiceTime());
+                    eServer.setJobInExecution(newEvent.getAssociatedJob());
+                    // no time in queue
+                    int nCat = newEvent.getAssociatedJob().getCategory().getCategoryNumber();
+                    recordJob(nCat, 0.0, newEvent.getAssociatedJob().getServiceTime());
+                    // schedule execution end
+                    Job newEventJob = newEvent.getAssociatedJob();
+                    Event nextEndEvent = new Event(
+                            true,
+                            newEvent.getArrivalTime()
+                                    + newEvent.getAssociatedJob().getServiceTime(),
+                            newEventJob);
+                    newEventJob.setAssociatedEvent(nextEndEvent);
+                    timeLine.add(nextEndEvent);
+                } else { // Server unavailable
+                    // add Job to Server's FIFO Queue
+                    eServer.getWaitingJobs().add(newEvent.getAssociatedJob());
+                    if (hybridThreshold > 0 && eServer.getWaitingJobs().size() > hybridThreshold) {
+                        startFluid(eServer);
+                    }
+                }
+                // updates the counter of Jobs managed (until N)
+                i++;
+            } else if (newEvent.getEventType() == true) { // Job execution end
+                // scheduled server's search
+                int k = 0;
+                while (k < K && servers[k].getJobInExecution() != newEvent.getAssociatedJob()) {
+                    k++;
+                }
+                if (servers[k].isFluid()) { // Server in fluid mode
+                    if (servers[k].getDrainTime() > newEvent.getArrivalTime()) {
+                        // work still to be done: the same Job marks the
+                        // Server until the new drain time
+                        Job drainJob = servers[k].getJobInExecution();
+                        Event drainEvent = new Event(true, servers[k].getDrainTime(), drainJob);
+                        drainJob.setAssociatedEvent(drainEvent);
+                        timeLine.add(drainEvent);
+                    } else {
+                        // backlog drained, back to the exact simulation
+                        servers[k].setFluid(false);
+                        servers[k].setJobInExecution(null);
+                        // candidate end time for the r-th run
+                        endTimes[r] = newEvent.getArrivalTime();
+                    }
+                } else if (!servers[k].getWaitingJobs().isEmpty()) { // queue not empty
+                    // executing the first Job in the queue
+                    Job nextJob = servers[k].getWaitingJobs().poll();
+                    nextJob.setServiceTime(nextJob.getCategory().getServiceTime());
+                    servers[k].setJobInExecution(nextJob);
+                    // updating queuing time of this new executing job
+                    Event jobArrivalEvent = servers[k].getJobInExecution().getAssociatedEvent();
+                    recordJob(nextJob.getCategory().getCategoryNumber(),
+                            newEvent.getArrivalTime() - jobArrivalEvent.getArrivalTime(),
+                            nextJob.getServiceTime());
+                    // schedule execution end
+                    Job nextEventJob = servers[k].getJobInExecution();
+                    Event nextEndEvent = new Event(
+                            true,
+                            newEvent.getArrivalTime()
+                                    + servers[k].getJobInExecution().getServiceTime(),
+                            nextEventJob);
+                    nextEventJob.setAssociatedEvent(nextEndEvent);
+                    timeLine.add(nextEndEvent);
+                } else { // queue empty
+                    // no more execution for now
+                    servers[k].setJobInExecution(null);
+                    // candidate end time for the r-th run
+                    endTimes[r] = newEvent.getArrivalTime();
+                }
+            } else {
+                // new Job arrival, but i ≥ N
+            }
+        }
+        // a stopped run ends at its last Event, and its statistics only
+        // cover the Jobs started so far
+        if (stopped) {
+            endTimes[r] = now;
+        }
+        int started = n;
+        // calculating the average queuing time of this run
+        for (n = 0; n < started; n++) {
+            avgQueuingTimes[r] += queuingTimes[n];
+        }
+        avgQueuingTimes[r] /= started;
+        n = 0;
+        // calculating the average queuing times per category of this run
+        for (int h = 0; h < H; h++) {
+            int k = 0;
+            while (k < N - 1 && k < cntCatTimes[h]) {
+                avgQueuingTimesCategory[h][r] += queuingTimesCategory[h][k];
+                k++;
+            }
+            avgQueuingTimesCategory[h][r] /= (k != 0 ? k : 1);
+        }
+        // calculating the average service times per category of this run
+        for (int h = 0; h < H; h++) {
+            int k = 0;
+            while (k < N - 1 && k < cntCatTimes[h]) {
+                avgServiceTimesCategory[h][r] += serviceTimesCategory[h][k];
+                k++;
+            }
+            avgServiceTimesCategory[h][r] /= (k != 0 ? k : 1);
+        }
+    }
+
+    /**
+     * This method extracts the next Event to be managed. With pregenerated
+     * arrivals it is the earliest between the next arrival of the stream and
+     * the first Event of the time line, which only holds execution ends
+     *
+     * @param i the number of Jobs already arrived in this run
+     * @return the next Event
+     */
+    private Event nextEvent(int i) {
+        if (arrivals != null && i < N
+                && (timeLine.isEmpty() || arrivals.peekTime() <= timeLine.peek().getArrivalTime())) {
+            Job job = new Job(categories[arrivals.peekCategory()]);
+            Event arrival = new Event(false, arrivals.peekTime(), job);
+            job.setAssociatedEvent(arrival);
+            arrivals.advance();
+            return arrival;
+        }
+        return timeLine.poll();
+    }
+
+    /**
+     * This method registers the queuing time and the service time of a Job
+     * that starts its execution
+     *
+     * @param nCat        the category number of the Job
+     * @param queuingTime the time spent by the Job in the queue
+     * @param serviceTime the service time of the Job
+     */
+    private void recordJob(int nCat, double queuingTime, double serviceTime) {
+        queuingTimes[n++] = queuingTime;
+        if (publisher != null && batchSize > 0 && n % batchSize == 0) {
+            publishBatch();
+        }
+        // the last cell of each row is overwritten once it is reached
+        int kc = Math.min(cntCatTimes[nCat]++, N - 1);
+        queuingTimesCategory[nCat][kc] = queuingTime;
+        serviceTimesCategory[nCat][kc] = serviceTime;
+    }
+
+    /**
+     * This method publishes the record of the batch just completed: the
+     * average queuing time of the current run so far, with the confidence
+     * interval given by the batch means method
+     */
+    private void publishBatch() {
+        int b = n / batchSize;
+        double sum = 0;
+        for (int c = n - batchSize; c < n; c++) {
+            sum += queuingTimes[c];
+        }
+        batchMeans[b - 1] = sum / batchSize;
+        publisher.publish("{\"type\":\"batch\",\"repetition\":" + (currentRun + 1)
+                + ",\"batch\":" + b + ",\"jobs\":" + n
+                + ",\"AQT\":" + Simulator.estimate(batchMeans, b) + "}");
+        if (publisher.isStopRequested()) {
+            stopped = true;
+        }
+    }
+
+    /**
+     * This method switches a Server to the fluid mode. All the Jobs in its
+     * FIFO queue are given a service time and their queuing times are
+     * registered, as they will be executed one after the other at the end of
+     * the Job currently in execution
+     *
+     * @param server the Server whose queue crossed the hybrid threshold
+     */
+    private void startFluid(Server server) {
+        // the Job in execution keeps its end Event, which becomes the first
+        // drain check of the Server
+        double drainTime = server.getJobInExecution().getAssociatedEvent().getArrivalTime();
+        server.setFluid(true);
+        server.setDrainTime(drainTime);
+        while (!server.getWaitingJobs().isEmpty()) {
+            Job nextJob = server.getWaitingJobs().poll();
+            nextJob.setServiceTime(nextJob.getCategory().getServiceTime());
+            recordJob(nextJob.getCategory().getCategoryNumber(),
+                    server.getDrainTime() - nextJob.getAssociatedEvent().getArrivalTime(),
+                    nextJob.getServiceTime());
+            server.addFluidJob(server.getDrainTime() + nextJob.getServiceTime(), nextJob.getServiceTime());
+            fluidJobs++;
+        }
+    }
+
+    /**
+     * The roundRobin function selects the next server number using
+     * round-robin scheduling policy
+     *
+     * @param K The total number of servers available
+     * @return The selected server number
+     */
+    private int roundRobin(int K) {
+        selectedServerNumber = (selectedServerNumber + 1) % K;
+        return selectedServerNumber;
+    }
+
+    /**
+     * This custom scheduling policy selects the server with the shortest
+     * queue length or the first available Server if no Jobs are currently being
+     * executed
+     *
+     * @param servers An array of Server objects, each of them with his
+     *                currently executing Job (if there is one), and his FIFO
+     *                queue containing the waiting Jobs
+     * @param time    the current simulation time
+     * @return the index of the Server with the best specified parameters
+     */
+    @SuppressWarnings("unused")
+    private int customSP_bad(Server[] servers, double time) {
+        int minQueueLength = 0, s = 0;
+        for (int k = 0; k < servers.length; k++) {
+            if (servers[k].getJobInExecution() == null)
+                return k;
+            int queueLength = servers[k].getBacklog(time);
+            if (queueLength <= minQueueLength) {
+                minQueueLength = queueLength;
+                s = k;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * This custom scheduling policy selects the best Server based on eligibility
+     * criteria of each Server. This consists in a function ƒ(𝑥,𝑦) = φ𝑥 + τy,
+     * where
+     * 𝑥 := "consecutive position of the next execution end Event" (in other
+     * words, a parameter that refers to "when the current executiong Job
+     * will finish compared to others servers")
+     * 𝑦 := "number of waiting Job in the queue"
+     * φ,τ ∈ [0,1] ⊂ ℝ are related weight
+     *
+     * @param servers  An array of Server objects, each of them with his
+     *                 currently executing Job (if there is one), and his FIFO
+     *                 queue containing the waiting Jobs
+     * @param timeLine The next upcoming Events in the simulation
+     * @param time     the current simulation time
+     * @return the index of the server with the lowest eligibility value
+     */
+    private int customSP_good(Server[] servers, PriorityQueue<Event> timeLine, double time) {
+        int x = 0, y;
+        Iterator<Event> nextEvents = timeLine.iterator();
+        while (nextEvents.hasNext() && x < servers.length) {
+            Event e = nextEvents.next();
+            // for each 'end of execution' Event
+            if (e.getEventType() == true) {
+                // scheduled server search
+                int k = 0;
+                while (k < servers.length && servers[k].getJobInExecution() != e.getAssociatedJob()) {
+                    k++;
+                }
+                // setting the x parameter as specified,
+                // the lowest the value -> the best eligibility
+                x++;
+                // setting the y parameter as specified,
+                // the lowest the value -> the best eligibility
+                y = servers[k].getBacklog(time);
+                servers[k].setEligibility(phi * x + tau * y);
+            }
+        }
+        // all Servers unviewed are checked to find possible free Server
+        // if it happens, it has the best eligibility
+        for (Server s : servers) {
+            if (s.getEligibility() == Double.POSITIVE_INFINITY) {
+                if (s.getJobInExecution() == null) {
+                    s.setEligibility(0);
+                }
+            }
+        }
+        double bestEligibility = Double.POSITIVE_INFINITY;
+        int bestServer = 0;
+        // searching the Server with the best eligibility
+        for (int k = 0; k < servers.length; k++) {
+            if (servers[k].getEligibility() <= bestEligibility) {
+                bestEligibility = servers[k].getEligibility();
+                bestServer = k;
+            }
+        }
+        return bestServer;
+    }
+
+    /**
+     * This method describes the r-th run, to be restored by another
+     * Simulation of the same input: its statistics and the state at its end
+     * (round-robin counter, eligibility of the Servers and number of values
+     * drawn from each random generator, which are replayed to restore them)
+     *
+     * @param r the number of the run
+     * @return the record of the run, as a single line
+     */
+    public String saveRepetition(int r) {
+        StringBuilder record = new StringBuilder();
+        record.append(endTimes[r]).append(";").append(avgQueuingTimes[r]);
+        for (double[] row : new double[][] { column(avgQueuingTimesCategory, r),
+                column(avgServiceTimesCategory, r), cntCatJobs }) {
+            record.append(";");
+            for (int h = 0; h < H; h++) {
+                record.append(h == 0 ? "" : ",").append(row[h]);
+            }
+        }
+        record.append(";").append(selectedServerNumber).append(";");
+        for (int k = 0; k < K; k++) {
+            record.append(k == 0 ? "" : ",").append(servers[k].getEligibility());
+        }
+        record.append(";");
+        for (int h = 0; h < H; h++) {
+            record.append(h == 0 ? "" : ",").append(categories[h].getArrivalDraws())
+                    .append(",").append(categories[h].getServiceDraws());
+        }
+        return record.toString();
+    }
+
+    /**
+     * This method restores the r-th run from its record, instead of
+     * simulating it. The runs must be restored in order
+     *
+     * @param r      the number of the run
+     * @param record the record given by saveRepetition
+     * @throws IOException if the record is not valid
+     */
+    public void restoreRepetition(int r, String record) throws IOException {
+        try {
+            String[] fields = record.split(";");
+            endTimes[r] = Double.parseDouble(fields[0]);
+            avgQueuingTimes[r] = Double.parseDouble(fields[1]);
+            String[] aqt = fields[2].split(","), ast = fields[3].split(","), cnt = fields[4].split(",");
+            for (int h = 0; h < H; h++) {
+                avgQueuingTimesCategory[h][r] = Double.parseDouble(aqt[h]);
+                avgServiceTimesCategory[h][r] = Double.parseDouble(ast[h]);
+                cntCatJobs[h] = Double.parseDouble(cnt[h]);
+            }
+            selectedServerNumber = Integer.parseInt(fields[5]);
+            String[] eligibilities = fields[6].split(",");
+            for (int k = 0; k < K; k++) {
+                servers[k].setEligibility(Double.parseDouble(eligibilities[k]));
+            }
+            String[] draws = fields[7].split(",");
+            for (int h = 0; h < H; h++) {
+                categories[h].skipTo(Long.parseLong(draws[2 * h]), Long.parseLong(draws[2 * h + 1]));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("invalid record of run " + r, e);
+        }
+    }
+
+    /**
+     * This function extracts a column of a matrix
+     *
+     * @param matrix the matrix
+     * @param c      the column number
+     * @return the c-th value of each row
+     */
+    private static double[] column(double[][] matrix, int c) {
+        double[] values = new double[matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            values[i] = matrix[i][c];
+        }
+        return values;
+    }
+
+    /**
+     * This method sets the weights of the customSP_good scheduling policy
+     *
+     * @param phi the weight φ of the position of the next execution end
+     * @param tau the weight τ of the number of waiting Jobs
+     */
+    public void setWeights(double phi, double tau) {
+        this.phi = phi;
+        this.tau = tau;
+    }
+
+    /**
+     * Setter for the hybrid threshold field
+     *
+     * @param hybridThreshold the number of waiting Jobs beyond which a Server
+     *                        switches to the fluid mode, 0 to disable it
+     */
+    public void setHybridThreshold(int hybridThreshold) {
+        this.hybridThreshold = hybridThreshold;
+    }
+
+    /**
+     * This method makes the arrivals of all the runs pregenerated in chunks by
+     * a producer thread, instead of being scheduled one by one on the time
+     * line. The results are the same, but only with the round-robin policy:
+     * the custom one reads the time line, which then holds only the execution
+     * ends
+     *
+     * @param chunk the number of interarrival times generated at once for
+     *              each Category
+     * @throws IllegalStateException if the policy is the custom one
+     */
+    public void setPregenerated(int chunk) {
+        if (P == true) {
+            throw new IllegalStateException("The pregenerated arrivals need the round-robin policy!");
+        }
+        this.arrivals = new ArrivalStream(categories, N, R, chunk);
+    }
+
+    /**
+     * This method enables the batch records of the streaming mode
+     *
+     * @param publisher the publisher of the records
+     * @param batchSize the number of Jobs of each batch, 0 to disable the
+     *                  batch records
+     */
+    public void setPublisher(ResultPublisher publisher, int batchSize) {
+        this.publisher = publisher;
+        this.batchSize = batchSize;
+        this.batchMeans = batchSize > 0 ? new double[N / batchSize] : null;
+    }
+
+    /**
+     * Getter for the stopped field
+     *
+     * @return true if the last run was stopped by the stream consumer at the
+     *         end of a batch, before all its Jobs were managed
+     */
+    public boolean isStopped() {
+        return this.stopped;
+    }
+
+    /**
+     * Getter for the fluid Jobs field
+     *
+     * @return the number of Jobs served in fluid mode over all the runs
+     */
+    public long getFluidJobs() {
+        return this.fluidJobs;
+    }
+
+    /**
+     * Getter for the end times field
+     *
+     * @return the end time of each run
+     */
+    public double[] getEndTimes() {
+        return this.endTimes;
+    }
+
+    /**
+     * Getter for the average queuing times field
+     *
+     * @return the average queuing time of each run
+     */
+    public double[] getAvgQueuingTimes() {
+        return this.avgQueuingTimes;
+    }
+
+    /**
+     * Getter for the average queuing times per Category field
+     *
+     * @return the average queuing times matrix, one Category each row, one
+     *         run each column
+     */
+    public double[][] getAvgQueuingTimesCategory() {
+        return this.avgQueuingTimesCategory;
+    }
+
+    /**
+     * Getter for the average service times per Category field
+     *
+     * @return the average service times matrix, one Category each row, one
+     *         run each column
+     */
+    public double[][] getAvgServiceTimesCategory() {
+        return this.avgServiceTimesCategory;
+    }
+
+    /**
+     * Getter for the counter of Jobs per Category field
+     *
+     * @return the number of simulated Jobs of each Category over all the runs
+     */
+    public double[] getCntCatJobs() {
+        return this.cntCatJobs;
+    }
+}
+
+// =============================================================================
+
+/**
+ * The AnalyticEstimator class estimates the output of a simulation with the
+ * round-robin policy through queueing theory, without simulating it.
+ *
+ * All the arrivals together are a Poisson process of rate Λ = Σ λ_h, and
+ * round-robin gives each Server one arrival every K: its interarrival times
+ * are Erlang-K. The service time of a Job is exponential of rate μ_h with
+ * probability p_h = λ_h / Λ, so each Server is an independent E_K/H_n/1
+ * FIFO queue, n being the number of different rates (E_K/M/1 if they are all
+ * equal), where the queuing time does not depend on the Category:
+ * - if the load ρ is less than 1, the mean queuing time in steady state is
+ *   exact: with B*(s) = Σ p_h μ_h / (μ_h + s) the transform of the service
+ *   times and A*(s) = (Λ / (Λ + s))^K the one of the interarrival times,
+ *   A*(-s) B*(s) = 1 has one root s_i < 0 between each two consecutive poles
+ *   -μ_i of B*, and between the smallest rate and 0; the queuing time
+ *   transform is then Π (μ_i + s) / (s - s_i) · (-s_i) / μ_i, whose mean is
+ *   Σ (-1/s_i - 1/μ_i) and whose variance is Σ (1/s_i² - 1/μ_i²);
+ * - if the load ρ is at least 1 the queue never settles, and the fluid
+ *   approximation of its growth is used, with the error given by the
+ *   diffusion fluctuations.
+ * The steady state formulas get the error of the transient (the simulation
+ * starts empty) and the spread of the simulated averages, about 2 standard
+ * deviations; ET gets also the one of the last completions.
+ * The relative error bound is the largest between the ones of ET and AQT,
+ * each relative to its own estimate.
+ */
+class AnalyticEstimator {
+    private final int K;
+    private final int N;
+    private double[] probabilities;
+    private double[] serviceTimes;
+    private double[] rates;
+    private double[] rateWeights;
+    private double endTime;
+    private double queuingTime;
+    private double endTimeErrorBound;
+    private double queuingTimeErrorBound;
+    private String model;
+
+    /**
+     * This constructor initializes a new AnalyticEstimator object and
+     * computes its estimates
+     *
+     * @param K               the number of Servers
+     * @param H               the number of Categories
+     * @param N               the number of Jobs to be simulated
+     * @param R               the number of repetitions of the simulation
+     * @param generationParam matrix with the 4 configuration parameters of each
+     *                        Category, one Category each row
+     */
+    public AnalyticEstimator(int K, int H, int N, int R, double[][] generationParam) {
+        this.K = K;
+        this.N = N;
+        double lambda = 0;
+        for (int h = 0; h < H; h++) {
+            lambda += generationParam[h][0];
+        }
+        probabilities = new double[H];
+        serviceTimes = new double[H];
+        double es = 0, es2 = 0;
+        // the different service rates, in increasing order, and the
+        // probability of each one
+        Map<Double, Double> rateProbabilities = new TreeMap<Double, Double>();
+        for (int h = 0; h < H; h++) {
+            probabilities[h] = generationParam[h][0] / lambda;
+            serviceTimes[h] = 1 / generationParam[h][1];
+            es += probabilities[h] * serviceTimes[h];
+            es2 += probabilities[h] * 2 * serviceTimes[h] * serviceTimes[h];
+            rateProbabilities.merge(generationParam[h][1], probabilities[h], Double::sum);
+        }
+        rates = new double[rateProbabilities.size()];
+        rateWeights = new double[rates.length];
+        int n = 0;
+        for (Map.Entry<Double, Double> rate : rateProbabilities.entrySet()) {
+            rates[n] = rate.getKey();
+            rateWeights[n++] = rate.getValue();
+        }
+        // each Server: arrival rate, load, variances and Jobs
+        double lambdaServer = lambda / K;
+        double rho = lambdaServer * es;
+        double ca2 = 1.0 / K;
+        double varS = es2 - es * es;
+        double varA = ca2 / (lambdaServer * lambdaServer);
+        double jobs = (double) N / K;
+        // expected maximum of K exponentials, for the last completions
+        double harmonic = 0;
+        for (int k = 1; k <= K; k++) {
+            harmonic += 1.0 / k;
+        }
+        String service = rates.length == 1 ? "M" : "H_" + rates.length;
+        double queuingError, endTimeError;
+        if (rho < 1) {
+            model = "E_" + K + "/" + service + "/1";
+            queuingTime = 0;
+            double queuingVariance = 0;
+            for (int i = 0; i < rates.length; i++) {
+                double root = root(lambda, i);
+                queuingTime += -1 / root - 1 / rates[i];
+                queuingVariance += 1 / (root * root) - 1 / (rates[i] * rates[i]);
+            }
+            // relaxation time (in Jobs) of the queue, started empty
+            double relaxation = rho / ((1 - Math.sqrt(rho)) * (1 - Math.sqrt(rho)));
+            queuingError = queuingTime * Math.min(1, relaxation / jobs);
+            // plus twice the standard deviation of the queuing time averaged
+            // over the N Jobs of R runs, as the simulation would print it;
+            // the queuing times of a Server are correlated over about twice
+            // the relaxation time
+            queuingError += 2 * Math.sqrt(queuingVariance * (1 + 2 * relaxation) / ((double) N * R));
+            endTime = N / lambda + queuingTime + es * harmonic;
+            // plus twice the standard deviation of the N-th arrival time
+            // averaged over R runs, as the simulation would print it
+            endTimeError = queuingTime + es * harmonic + 2 * Math.sqrt(N / (double) R) / lambda;
+        } else {
+            model = "fluid E_" + K + "/" + service + "/1, rho " + rho;
+            // the i-th Job of a Server waits about i times the drift
+            double drift = es - 1 / lambdaServer;
+            queuingTime = (jobs - 1) / 2 * drift;
+            queuingError = Math.sqrt(jobs * (varA + varS));
+            endTime = 1 / lambdaServer + jobs * es;
+            endTimeError = Math.sqrt(jobs * varS) * (1 + Math.sqrt(2 * Math.log(K))) + es * harmonic;
+        }
+        endTimeErrorBound = endTimeError / endTime;
+        // an error on a null queuing time is unbounded in relative terms
+        queuingTimeErrorBound = queuingError == 0 ? 0 : queuingError / queuingTime;
+    }
+
+    /**
+     * This method finds, by bisection, the root of A*(-s) B*(s) = 1 between
+     * the poles -μ_i and -μ_(i-1) of B*, or between -μ_0 and 0 for i = 0:
+     * A*(-s) B*(s) - 1 goes from +∞ next to -μ_i to a negative value next to
+     * the other end (just left of 0 it is about s (E[T] - E[S]), as ρ < 1)
+     *
+     * @param lambda the rate of each phase of the interarrival times
+     * @param i      the index of the service rate
+     * @return the root s_i
+     */
+    private double root(double lambda, int i) {
+        double low = -rates[i], high = i == 0 ? 0 : -rates[i - 1];
+        for (int k = 0; k < 2000; k++) {
+            double middle = (low + high) / 2;
+            if (middle <= low || middle >= high) {
+                break;
+            }
+            double value = Math.pow(lambda / (lambda - middle), K);
+            double transform = 0;
+            for (int j = 0; j < rates.length; j++) {
+                transform += rateWeights[j] * rates[j] / (rates[j] + middle);
+            }
+            // the root 0 is excluded, as the function is negative just left
+            // of it
+            if (value * transform - 1 > 0) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return (low + high) / 2;
+    }
+
+    /**
+     * Getter for the end time field
+     *
+     * @return the estimated End Time
+     */
+    public double getEndTime() {
+        return this.endTime;
+    }
+
+    /**
+     * Getter for the queuing time field
+     *
+     * @return the estimated Average Queuing Time, the same for each Category
+     */
+    public double getQueuingTime() {
+        return this.queuingTime;
+    }
+
+    /**
+     * This method returns the expected number of Jobs of a Category
+     *
+     * @param nCat the category number
+     * @return the expected number of Jobs
+     */
+    public double getJobs(int nCat) {
+        return this.N * this.probabilities[nCat];
+    }
+
+    /**
+     * This method returns the mean service time of a Category
+     *
+     * @param nCat the category number
+     * @return the mean service time
+     */
+    public double getServiceTime(int nCat) {
+        return this.serviceTimes[nCat];
+    }
+
+    /**
+     * This method returns the relative error bound of the estimates, the
+     * largest between the ones of ET and AQT
+     *
+     * @return the relative error bound
+     */
+    public double getErrorBound() {
+        return Math.max(this.endTimeErrorBound, this.queuingTimeErrorBound);
+    }
+
+    /**
+     * Getter for the end time error bound field
+     *
+     * @return the relative error bound of the estimated End Time
+     */
+    public double getEndTimeErrorBound() {
+        return this.endTimeErrorBound;
+    }
+
+    /**
+     * Getter for the queuing time error bound field
+     *
+     * @return the relative error bound of the estimated Average Queuing Time
+     */
+    public double getQueuingTimeErrorBound() {
+        return this.queuingTimeErrorBound;
+    }
+
+    /**
+     * Getter for the model field
+     *
+     * @return the description of the queueing model used
+     */
+    public String getModel() {
+        return this.model;
+    }
+}
+
+// =============================================================================
+
+/**
+ * The ResultCache class keeps results in a directory, one file each, named
+ * after the hash of what determines them (see key). A file is written to a
+ * temporary one and then renamed, so that concurrent processes never read it
+ * partially written. Each read marks the file as recently used; when the
+ * directory grows beyond its maximum size the least recently used files are
+ * deleted, holding a lock on the directory. Temporary files count towards the
+ * size, and are deleted when stale (left by a process killed while writing).
+ * The cache can be shared by the users allowed to write in its directory: the
+ * results are readable by every user and the lock file writable by every
+ * user, and a result that cannot be marked as used is read anyway
+ */
+class ResultCache {
+    // to be changed whenever the simulation engine gives different results
+    static final String ENGINE_VERSION = "Simulator 1.3, Simulation 2";
+    // age of a temporary file after which it is considered stale, in ms
+    private static final long STALE_AGE = 60 * 60 * 1000;
+    private Path directory;
+    private long maxSize;
+
+    /**
+     * This constructor initializes a new ResultCache object, creating its
+     * directory if needed
+     *
+     * @param directory the directory of the cache
+     * @param maxSize   the maximum size of the cache, in bytes
+     * @throws IOException if the directory cannot be created
+     */
+    public ResultCache(Path directory, long maxSize) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * This function returns the key of a result: the SHA-256 hash of the
+     * engine version and of the canonical description of the input
+     *
+     * @param input the canonical description of the input
+     * @return the key, in hexadecimal
+     */
+    static String key(String input) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((ENGINE_VERSION + "\n" + input).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * This method reads a result and marks it as recently used
+     *
+     * @param name the file name of the result
+     * @return the lines of the result, null if it is not in the cache
+     * @throws IOException if the result cannot be read
+     */
+    public List<String> read(String name) throws IOException {
+        Path file = directory.resolve(name);
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            try {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                // written by another user: it may be evicted a bit earlier
+            }
+            return lines;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * This method writes a result, replacing the previous one if present,
+     * then evicts the least recently used results if needed
+     *
+     * @param name  the file name of the result
+     * @param lines the lines of the result
+     * @throws IOException if the result cannot be written
+     */
+    public void write(String name, List<String> lines) throws IOException {
+        Path temporary = Files.createTempFile(directory, name, ".tmp");
+        try {
+            Files.write(temporary, lines, StandardCharsets.UTF_8);
+            try {
+                // createTempFile makes it readable by its owner only
+                Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-r--r--"));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system: the default permissions are kept
+            }
+            Files.move(temporary, directory.resolve(name),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        evict();
+    }
+
+    /**
+     * This method deletes the stale temporary files, then the least recently
+     * used results until the cache fits its maximum size
+     *
+     * @throws IOException if the cache cannot be listed or locked
+     */
+    private void evict() throws IOException {
+        Path lock = directory.resolve(".lock");
+        try {
+            Files.createFile(lock);
+            // the other users sharing the cache lock it too
+            Files.setPosixFilePermissions(lock, PosixFilePermissions.fromString("rw-rw-rw-"));
+        } catch (FileAlreadyExistsException e) {
+            // created by a previous write
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system: the default permissions are kept
+        }
+        try (FileChannel channel = FileChannel.open(lock, StandardOpenOption.WRITE)) {
+            // released when the channel is closed
+            channel.lock();
+            List<Path> files = new ArrayList<Path>();
+            Map<Path, BasicFileAttributes> attributes = new HashMap<Path, BasicFileAttributes>();
+            long size = 0, stale = System.currentTimeMillis() - STALE_AGE;
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.{out,runs,tmp}")) {
+                for (Path file : entries) {
+                    BasicFileAttributes attribute;
+                    try {
+                        attribute = Files.readAttributes(file, BasicFileAttributes.class);
+                    } catch (NoSuchFileException e) {
+                        // renamed or deleted by another process meanwhile
+                        continue;
+                    }
+                    if (!file.getFileName().toString().endsWith(".tmp")) {
+                        files.add(file);
+                        attributes.put(file, attribute);
+                    } else if (attribute.lastModifiedTime().toMillis() < stale) {
+                        Files.deleteIfExists(file);
+                        continue;
+                    }
+                    // temporary files still being written count, but are
+                    // not deleted
+                    size += attribute.size();
+                }
+            }
+            if (size <= maxSize) {
+                return;
+            }
+            files.sort((a, b) -> attributes.get(a).lastModifiedTime()
+                    .compareTo(attributes.get(b).lastModifiedTime()));
+            for (int f = 0; f < files.size() && size > maxSize; f++) {
+                size -= attributes.get(files.get(f)).size();
+                Files.deleteIfExists(files.get(f));
+            }
+        }
+    }
+}
+
+// =============================================================================
+
+/**
+ * The PolicyOptimiser class tunes the weights φ and τ of the customSP_good
+ * scheduling policy for a given input and objective (ET, overall AQT or a
+ * weighted sum of the Categories' AQT), to be minimised.
+ *
+ * The policy only compares the eligibilities φ𝑥 + τy, so scaling both weights
+ * does not change it: the only parameter is the ratio ρ = φ/(φ+τ), and the
+ * weights are (ρ, 1-ρ). The default weights (0.4, 0.6) are ρ = 0.4.
+ *
+ * It uses simultaneous perturbation stochastic approximation (SPSA): at each
+ * iteration ρ is perturbed by ±c_k, with a random sign, and the gradient is
+ * estimated from only two simulations, which use the same seeds (common random
+ * numbers) and are executed in parallel. Each iteration uses new seeds. Then a
+ * ranking-and-selection step compares the default weights, the last iterate
+ * and the average of the last half of the iterates (leaving out those that
+ * the search cannot tell apart) on fresh common seeds, adding simulations
+ * until the best one is separated from (or equivalent to) each other one with
+ * 95% joint confidence. The whole budget stays below the one of a grid search
+ * with the same step.
+ */
+class PolicyOptimiser {
+    private final int K;
+    private final int H;
+    private final int N;
+    private final int R;
+    private double[][] generationParam;
+    // objective: ET if true, otherwise AQT (weighted per Category, if the
+    // weights are given)
+    private boolean endTime;
+    private double[] weights;
+    private ExecutorService executor;
+    private AtomicInteger simulations;
+
+    /**
+     * This constructor initializes a new PolicyOptimiser object with the given
+     * parameters
+     *
+     * @param K               the number of Servers
+     * @param H               the number of Categories
+     * @param N               the number of Jobs to be simulated in each run
+     * @param R               the number of runs of each simulation
+     * @param generationParam matrix with the 4 configuration parameters of each
+     *                        Category, one Category each row
+     * @param objective       "ET", "AQT" or "AQT:w_1,...,w_H"
+     * @throws IllegalArgumentException if the objective is not valid
+     */
+    public PolicyOptimiser(int K, int H, int N, int R, double[][] generationParam, String objective) {
+        this.K = K;
+        this.H = H;
+        this.N = N;
+        this.R = R;
+        this.generationParam = generationParam;
+        if (objective.equals("ET")) {
+            this.endTime = true;
+        } else if (objective.startsWith("AQT:")) {
+            String[] w = objective.substring("AQT:".length()).split(",");
+            if (w.length != H) {
+                throw new IllegalArgumentException("The objective needs one weight per Category!");
+            }
+            this.weights = new double[H];
+            for (int h = 0; h < H; h++) {
+                this.weights[h] = Double.parseDouble(w[h]);
+            }
+        } else if (!objective.equals("AQT")) {
+            throw new IllegalArgumentException("Unknown objective " + objective + "!");
+        }
+        this.simulations = new AtomicInteger();
+    }
+
+    /**
+     * This method looks for the best weights, and describes them
+     *
+     * @param iterations the number of SPSA iterations
+     * @return the report: best weights, their objective value, the comparisons
+     *         with the other candidates and the number of simulations used
+     * @throws IllegalArgumentException if the iterations are less than 1
+     */
+    public String optimise(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("The number of iterations must be positive!");
+        }
+        executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        try {
+            double rho = 0.4;
+            // the objective is normalised on the default weights one
+            double scale = Math.abs(evaluate(rho, 0));
+            if (scale == 0) {
+                scale = 1;
+            }
+            // ----------------------------------------------------------------
+            // ----------------------------------------------------------- SPSA
+            // standard gain sequences a_k = a / (k + 1 + A)^0.602 and
+            // c_k = c / (k + 1)^0.101; on the first iteration a difference of
+            // 1% between the two evaluations moves ρ by 0.05, and no step is
+            // longer than 0.1
+            final double A = iterations / 10.0, c = 0.02, maxStep = 0.1;
+            final double a = 0.05 * (2 * c / 0.01) * Math.pow(A + 1, 0.602);
+            Random perturbations = new Random(iterations);
+            double average = 0, ck = c;
+            int averaged = 0;
+            for (int k = 0; k < iterations; k++) {
+                double ak = a / Math.pow(k + 1 + A, 0.602);
+                ck = c / Math.pow(k + 1, 0.101);
+                double delta = perturbations.nextBoolean() ? 1 : -1;
+                double plus = clip(rho + ck * delta), minus = clip(rho - ck * delta);
+                // paired evaluations, same seeds for both
+                Future<Double> yPlus = submit(plus, k + 1);
+                Future<Double> yMinus = submit(minus, k + 1);
+                double difference = (get(yPlus) - get(yMinus)) / scale;
+                double step = ak * difference / (plus - minus);
+                rho = clip(rho - Math.max(-maxStep, Math.min(maxStep, step)));
+                if (k >= iterations / 2) {
+                    average += rho;
+                    averaged++;
+                }
+            }
+            int searched = simulations.get();
+            // a grid search as fine as the last perturbation needs a
+            // simulation for each point of [0,1]
+            long grid = (long) Math.ceil(1 / ck) + 1;
+            // ----------------------------------------------------------------
+            // ------------------------------------------ Ranking and selection
+            // a candidate closer than the last perturbation to a previous one
+            // cannot be told apart by the search, so it is left out
+            double[] all = { 0.4, rho, average / averaged };
+            String[] allNames = { "default", "last", "average" };
+            double[] candidates = new double[all.length];
+            String[] names = new String[all.length];
+            int count = 0;
+            for (int j = 0; j < all.length; j++) {
+                boolean distinct = true;
+                for (int i = 0; i < count; i++) {
+                    distinct &= Math.abs(all[j] - candidates[i]) > ck;
+                }
+                if (distinct) {
+                    candidates[count] = all[j];
+                    names[count++] = allNames[j];
+                }
+            }
+            // the selection gets only the simulations left under the grid
+            int streams = (int) Math.max(0, (grid - 1 - searched) / count);
+            return select(Arrays.copyOf(candidates, count), names, iterations + 1, 0.01 * scale, streams)
+                    + "search: " + searched + " simulations, step " + ck + "\n"
+                    + "total: " + simulations.get() + " simulations (a grid with the same step: "
+                    + grid + " simulations)\n";
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * This method selects the best of the candidates: they are all simulated
+     * on the same seeds, 5 streams at a time, until the best one is better
+     * than, or within the indifference zone of, each other one, or until the
+     * streams are used up. The confidence of 95% is joint: each comparison at
+     * each look is tested at 5% divided by the number of comparisons and of
+     * looks (Bonferroni)
+     *
+     * @param candidates   the candidate ratios ρ, the first one is the default
+     *                     and the second one (if any) comes from the search
+     * @param names        the names of the candidates, for the report
+     * @param firstStream  the first seed stream, not used during the search
+     * @param indifference the smallest difference worth detecting
+     * @param maxStreams   the maximum number of streams of each candidate
+     * @return the report of the selection
+     */
+    private String select(double[] candidates, String[] names, int firstStream, double indifference,
+            int maxStreams) {
+        final int stage = 5;
+        maxStreams = Math.min(maxStreams, 50);
+        // with a single stream there is no confidence interval
+        if (maxStreams < 2) {
+            int chosen = Math.min(1, candidates.length - 1);
+            return "phi,tau: " + candidates[chosen] + "," + (1 - candidates[chosen]) + " (" + names[chosen]
+                    + ", not compared: no simulations left under the grid)\n";
+        }
+        int looks = (maxStreams + stage - 1) / stage;
+        double alpha = 0.05 / (Math.max(1, candidates.length - 1) * looks);
+        double[][] values = new double[candidates.length][maxStreams];
+        int streams = 0, best = 0;
+        boolean resolved = false;
+        while (!resolved && streams < maxStreams) {
+            int added = Math.min(stage, maxStreams - streams);
+            List<List<Future<Double>>> results = new ArrayList<List<Future<Double>>>();
+            for (int j = 0; j < candidates.length; j++) {
+                results.add(new ArrayList<Future<Double>>());
+                for (int s = streams; s < streams + added; s++) {
+                    results.get(j).add(submit(candidates[j], firstStream + s));
+                }
+            }
+            for (int j = 0; j < candidates.length; j++) {
+                for (int s = 0; s < added; s++) {
+                    values[j][streams + s] = get(results.get(j).get(s));
+                }
+            }
+            streams += added;
+            best = 0;
+            for (int j = 1; j < candidates.length; j++) {
+                if (mean(values[j], streams) < mean(values[best], streams)) {
+                    best = j;
+                }
+            }
+            resolved = true;
+            for (int j = 0; j < candidates.length; j++) {
+                if (j != best) {
+                    double[] d = differences(values[best], values[j], streams);
+                    double m = mean(d, streams), ci = halfWidth(d, streams, alpha);
+                    resolved &= m + ci < 0 || Math.abs(m) + ci < indifference;
+                }
+            }
+        }
+        StringBuilder report = new StringBuilder();
+        report.append("phi,tau: ").append(candidates[best]).append(",").append(1 - candidates[best])
+                .append(" (").append(names[best]).append(")\n");
+        report.append("objective: ").append(mean(values[best], streams)).append(" +/- ")
+                .append(halfWidth(values[best], streams, 0.05)).append("\n");
+        for (int j = 0; j < candidates.length; j++) {
+            if (j != best) {
+                double[] d = differences(values[best], values[j], streams);
+                double m = mean(d, streams), ci = halfWidth(d, streams, alpha);
+                report.append("vs ").append(names[j]).append(" ").append(candidates[j]).append(",")
+                        .append(1 - candidates[j]).append(": difference ").append(m).append(" +/- ").append(ci)
+                        .append(m + ci < 0 ? " (better)"
+                                : Math.abs(m) + ci < indifference ? " (equivalent)" : " (not separated)")
+                        .append("\n");
+            }
+        }
+        report.append("streams: ").append(streams).append(" of ").append(R).append(" runs each, alpha ")
+                .append(alpha).append(" per comparison\n");
+        return report.toString();
+    }
+
+    /**
+     * This method simulates the input with the custom policy and the weights
+     * (ρ, 1-ρ), using the seeds of a given stream
+     *
+     * @param rho    the ratio ρ = φ/(φ+τ) of the weights
+     * @param stream the seed stream: 0 ≡ the seeds of the input, otherwise
+     *               they are shifted by a multiple of the stream number
+     * @return the objective value, averaged over R runs
+     */
+    public double evaluate(double rho, int stream) {
+        double[][] param = new double[H][];
+        for (int h = 0; h < H; h++) {
+            param[h] = generationParam[h].clone();
+            param[h][2] += 1000003.0 * stream;
+            param[h][3] += 1000003.0 * stream;
+        }
+        Simulation simulation = new Simulation(K, H, N, R, true, param);
+        simulation.setWeights(rho, 1 - rho);
+        for (int r = 0; r < R; r++) {
+            simulation.runRepetition(r);
+        }
+        simulations.incrementAndGet();
+        if (endTime) {
+            return mean(simulation.getEndTimes(), R);
+        }
+        if (this.weights == null) {
+            return mean(simulation.getAvgQueuingTimes(), R);
+        }
+        double value = 0;
+        for (int h = 0; h < H; h++) {
+            value += this.weights[h] * mean(simulation.getAvgQueuingTimesCategory()[h], R);
+        }
+        return value;
+    }
+
+    /**
+     * This method submits an evaluation to the thread pool
+     *
+     * @param rho    the ratio ρ of the weights
+     * @param stream the seed stream
+     * @return the future objective value
+     */
+    private Future<Double> submit(double rho, int stream) {
+        return executor.submit(() -> evaluate(rho, stream));
+    }
+
+    /**
+     * This method waits for the result of an evaluation
+     *
+     * @param result the future objective value
+     * @return the objective value
+     */
+    private static double get(Future<Double> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * This function clips a ratio into [0,1]
+     *
+     * @param rho the ratio
+     * @return the nearest value of [0,1]
+     */
+    private static double clip(double rho) {
+        return Math.min(1, Math.max(0, rho));
+    }
+
+    /**
+     * This function calculates the mean of the first values of an array
+     *
+     * @param values the array
+     * @param count  the number of values to be considered
+     * @return the mean
+     */
+    private static double mean(double[] values, int count) {
+        double sum = 0;
+        for (int c = 0; c < count; c++) {
+            sum += values[c];
+        }
+        return sum / count;
+    }
+
+    /**
+     * This function calculates the half-width of the two-sided confidence
+     * interval of the mean of the first values of an array
+     *
+     * @param values the array
+     * @param count  the number of values to be considered, at least 2
+     * @param alpha  the probability that the mean falls outside
+     * @return the half-width
+     */
+    private static double halfWidth(double[] values, int count, double alpha) {
+        double m = mean(values, count), variance = 0;
+        for (int c = 0; c < count; c++) {
+            variance += (values[c] - m) * (values[c] - m);
+        }
+        return tQuantile(alpha, count - 1) * Math.sqrt(variance / (count - 1) / count);
+    }
+
+    /**
+     * This function returns the quantile t of the Student's t distribution
+     * such that P(|T| > t) = α, by bisection on the closed form of P(|T| < t)
+     * for integer degrees of freedom ν (Abramowitz and Stegun 26.7.3-4)
+     *
+     * @param alpha the two-sided probability α
+     * @param df    the degrees of freedom ν, ν ≥ 1
+     * @return the quantile
+     */
+    private static double tQuantile(double alpha, int df) {
+        double low = 0, high = 1;
+        while (tProbability(high, df) < 1 - alpha) {
+            high *= 2;
+        }
+        for (int i = 0; i < 100; i++) {
+            double middle = (low + high) / 2;
+            if (tProbability(middle, df) < 1 - alpha) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * This function returns P(|T| < t) for the Student's t distribution with
+     * integer degrees of freedom ν: with θ = atan(t/√ν), it is
+     * - ν odd: 2/π (θ + sinθ (cosθ + 2/3 cos³θ + ... + (2·4···(ν-3)) /
+     * (1·3···(ν-2)) cos^(ν-2)θ)), the sum being empty for ν = 1;
+     * - ν even: sinθ (1 + 1/2 cos²θ + ... + (1·3···(ν-3)) / (2·4···(ν-2))
+     * cos^(ν-2)θ)
+     *
+     * @param t  the value
+     * @param df the degrees of freedom ν, ν ≥ 1
+     * @return the probability
+     */
+    private static double tProbability(double t, int df) {
+        double theta = Math.atan(t / Math.sqrt(df)), cos = Math.cos(theta), sin = Math.sin(theta);
+        double cos2 = cos * cos;
+        if (df % 2 == 1) {
+            double sum = 0, term = cos;
+            for (int k = 3; k <= df; k += 2) {
+                sum += term;
+                term *= cos2 * (k - 1) / k;
+            }
+            return 2 / Math.PI * (theta + sin * sum);
+        }
+        double sum = 0, term = 1;
+        for (int k = 2; k <= df; k += 2) {
+            sum += term;
+            term *= cos2 * (k - 1) / k;
+        }
+        return sin * sum;
+    }
+
+    /**
+     * This function calculates the paired differences of two arrays
+     *
+     * @param x     the first array
+     * @param y     the second array
+     * @param count the number of values to be considered
+     * @return the array x - y
+     */
+    private static double[] differences(double[] x, double[] y, int count) {
+        double[] d = new double[count];
+        for (int c = 0; c < count; c++) {
+            d[c] = x[c] - y[c];
+        }
+        return d;
+    }
+}
+
+// =============================================================================
+
+/**
+ * The ArrivalStream class pregenerates the arrivals of all the runs on a
+ * producer thread. The interarrival times are generated in chunks for each
+ * Category, then merged (k-way, through a heap of Categories) into a ring
+ * buffer of arrival times and Category numbers, which is read by the
+ * simulation thread. Each run takes exactly N arrivals; as in the time line
+ * version, the next arrival of each Category is generated but discarded at the
+ * end of a run, so the generators stay in step with it. Each thread parks
+ * when it cannot go on (the producer on a full ring buffer, the consumer on an
+ * empty one after a few spins), so that they can share a single processor
+ */
+class ArrivalStream implements Runnable {
+    // largest chunk, so that the ring buffer capacity fits in an int
+    public static final int MAX_CHUNK = 1 << 20;
+    // spins of the consumer before parking
+    private static final int SPINS = 100;
+    private Category[] categories;
+    private int N;
+    private int R;
+    private int chunk;
+    // ring buffer, its capacity is a power of 2
+    private double[] times;
+    private int[] categoryNumbers;
+    private int mask;
+    // next slot to be read (written by the consumer only)
+    private AtomicLong head;
+    // next slot to be written (written by the producer only)
+    private AtomicLong tail;
+    // consumer's side: next slot to be read and last tail seen
+    private long readIndex;
+    private long availableIndex;
+    private Thread producer;
+    private Thread consumer;
+    // set by each thread before parking, so that the other one unparks it
+    private volatile boolean producerWaiting;
+    private volatile boolean consumerWaiting;
+    // what stopped the producer thread, null if it did not fail
+    private volatile Throwable failure;
+
+    /**
+     * This constructor initializes a new ArrivalStream object and starts its
+     * producer thread. The thread calling it is the consumer
+     *
+     * @param categories the Categories, whose arrival generators will be used
+     *                   by the producer thread only
+     * @param N          the number of arrivals of each run
+     * @param R          the number of runs
+     * @param chunk      the number of interarrival times generated at once
+     *                   for each Category
+     * @throws IllegalArgumentException if the chunk is not between 1 and
+     *                                  MAX_CHUNK
+     */
+    public ArrivalStream(Category[] categories, int N, int R, int chunk) {
+        if (chunk < 1 || chunk > MAX_CHUNK) {
+            throw new IllegalArgumentException("The chunk must be between 1 and " + MAX_CHUNK + "!");
+        }
+        this.categories = categories;
+        this.N = N;
+        this.R = R;
+        this.chunk = chunk;
+        int capacity = Integer.highestOneBit(4 * chunk - 1) << 1;
+        this.times = new double[capacity];
+        this.categoryNumbers = new int[capacity];
+        this.mask = capacity - 1;
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+        this.consumer = Thread.currentThread();
+        this.producer = new Thread(this, "arrival-producer");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * This method is executed by the producer thread. If the producer fails,
+     * the failure is published to the consumer, which would wait for it
+     * forever otherwise
+     */
+    @Override
+    public void run() {
+        try {
+            produce();
+        } catch (Throwable e) {
+            failure = e;
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * This method merges, for each run, the arrivals of the Categories,
+     * writing them into the ring buffer a chunk at a time
+     */
+    private void produce() {
+        final int H = categories.length;
+        double[][] interarrivals = new double[H][chunk];
+        int[] used = new int[H];
+        double[] nextArrival = new double[H];
+        // heap of Category numbers, sorted by their next arrival time
+        int[] heap = new int[H];
+        for (int c = 0; c < H; c++) {
+            used[c] = chunk;
+        }
+        long writeIndex = 0;
+        for (int r = 0; r < R; r++) {
+            for (int c = 0; c < H; c++) {
+                nextArrival[c] = nextInterarrival(c, interarrivals, used);
+                heap[c] = c;
+            }
+            for (int k = H / 2 - 1; k >= 0; k--) {
+                siftDown(heap, k, nextArrival);
             }
-            // generating the arrival Event of the first Job of each Category
-            for (i = 0; i < H; i++) {
-                Job firstJob = new Job(categories[i]);
-                Event firstEvent = new Event(
-                        false,
-                        categories[i].getInterarrivalTime(),
-                        firstJob);
-                firstJob.setAssociatedEvent(firstEvent);
-                timeLine.add(firstEvent);
-            }
-            // here starts the simulation. Below an explanation of how it works:
-            //
-            // while(timeline has Events to manage)
-            // | newEvent ← timeline.poll()
-            // | if (newEvent is 'arrival of a Job') then
-            // | | process arrival
-            // | | schedule next arrival
-            // | | select Server
-            // | | if (server available) then
-            // | | | execute Job
-            // | | | schedule end
-            // | | else add Job to Server's queue
-            // | else
-            // | | process end Event
-            // | | manage Server's queue and executions
-            //
-            // meanwhile it'll updates all the statistics needed
-            i = 0;
-            while (!timeLine.isEmpty()) {
-                Event newEvent = timeLine.poll();
-                // if it is the case, prints the Event extracted (for 2N times)
-                // for each Event it is printed, in order:
-                // time of occurence;
-                // service time, if the event is the end of execution of a Job,
-                // 0 otherwise;
-                // Category of the Job
-                if (R == 1 && N <= 10 && P == false && (i < N || newEvent.getEventType() == true)) {
-                    System.out.println(newEvent.getArrivalTime() + ","
-                            + (newEvent.getEventType() ? newEvent.getAssociatedJob().getServiceTime() : 0.0) + ","
-                            + newEvent.getAssociatedJob().getCategory().getCategoryNumber());
-                }
-                if (newEvent.getEventType() == false && i < N) { // new Job arrival
-                    Category eCategory = newEvent.getAssociatedJob().getCategory();
-                    // updating counter
-                    cntCatJobs[eCategory.getCategoryNumber()]++;
-                    // schedule next arrival
-                    Job eventJob = new Job(eCategory);
-                    Event nextEvent = new Event(
-                            false,
-                            newEvent.getArrivalTime() + eCategory.getInterarrivalTime(),
-                            eventJob);
-                    eventJob.setAssociatedEvent(nextEvent);
-                    timeLine.add(nextEvent);
-                    // select Server according to the wanted scheduling policy
-                    Server eServer;
-                    if (P == false) {
-                        eServer = servers[roundRobin(K)];
-                    } else {
-                        // eServer = servers[customSP_bad(servers)];
-                        eServer = servers[customSP_good(servers, timeLine)];
-                    }
-                    if (eServer.getJobInExecution() == null) { // Server available
-                        newEvent.getAssociatedJob().setServiceTime(eCategory.getServiceTime());
-                        eServer.setJobInExecution(newEvent.getAssociatedJob());
-                        // no time in queue
-                        queuingTimes[n++] = 0.0;
-                        int nCat = newEvent.getAssociatedJob().getCategory().getCategoryNumber();
-                        int kc = 0;
-                        while (kc < N - 1 && queuingTimesCategory[nCat][kc] != -1.0) {
-                            kc++;
-                        }
-                        queuingTimesCategory[nCat][kc] = 0.0;
-                        // updating service time stats
-                        kc = 0;
-                        while (kc < N - 1 && serviceTimesCategory[nCat][kc] != -1.0) {
-                            kc++;
-                        }
-                        serviceTimesCategory[nCat][kc] = newEvent.getAssociatedJob().getServiceTime();
-                        // schedule execution end
-                        Job newEventJob = newEvent.getAssociatedJob();
-                        Event nextEndEvent = new Event(
-                                true,
-                                newEvent.getArrivalTime()
-                                        + newEvent.getAssociatedJob().getServiceTime(),
-                                newEventJob);
-                        newEventJob.setAssociatedEvent(nextEndEvent);
-                        timeLine.add(nextEndEvent);
-                    } else { // Server unavailable
-                        // add Job to Server's FIFO Queue
-                        eServer.getWaitingJobs().add(newEvent.getAssociatedJob());
-                    }
-                    // updates the counter of Jobs managed (until N)
-                    i++;
-                } else if (newEvent.getEventType() == true) { // Job execution end
-                    // scheduled server's search
-                    int k = 0;
-                    while (k < K && servers[k].getJobInExecution() != newEvent.getAssociatedJob()) {
-                        k++;
-                    }
-                    if (!servers[k].getWaitingJobs().isEmpty()) { // queue not empty
-                        // executing the first Job in the queue
-                        Job nextJob = servers[k].getWaitingJobs().poll();
-                        nextJob.setServiceTime(nextJob.getCategory().getServiceTime());
-                        servers[k].setJobInExecution(nextJob);
-                        // updating queuing time of this new executing job
-                        Event jobArrivalEvent = servers[k].getJobInExecution().getAssociatedEvent();
-                        queuingTimes[n++] = newEvent.getArrivalTime() - jobArrivalEvent.getArrivalTime();
-                        // updating queueing time per category
-                        int nCat = nextJob.getCategory().getCategoryNumber();
-                        int kc = 0;
-                        while (kc < N - 1 && queuingTimesCategory[nCat][kc] != -1.0) {
-                            kc++;
-                        }
-                        queuingTimesCategory[nCat][kc] = newEvent.getArrivalTime() - jobArrivalEvent.getArrivalTime();
-                        // updating service time stats
-                        kc = 0;
-                        while (kc < N - 1 && serviceTimesCategory[nCat][kc] != -1.0) {
-                            kc++;
-                        }
-                        serviceTimesCategory[nCat][kc] = nextJob.getServiceTime();
-                        // schedule execution end
-                        Job nextEventJob = servers[k].getJobInExecution();
-                        Event nextEndEvent = new Event(
-                                true,
-                                newEvent.getArrivalTime()
-                                        + servers[k].getJobInExecution().getServiceTime(),
-                                nextEventJob);
-                        nextEventJob.setAssociatedEvent(nextEndEvent);
-                        timeLine.add(nextEndEvent);
-                    } else { // queue empty
-                        // no more execution for now
-                        servers[k].setJobInExecution(null);
-                        // candidate end time for the r-th run
-                        endTimes[r] = newEvent.getArrivalTime();
+            int i = 0;
+            while (i < N) {
+                // waiting for a chunk of free slots
+                while (writeIndex - head.get() > times.length - chunk) {
+                    producerWaiting = true;
+                    if (writeIndex - head.get() > times.length - chunk) {
+                        LockSupport.park(this);
                     }
-                } else {
-                    // new Job arrival, but i ≥ N
+                    producerWaiting = false;
                 }
-            }
-            // calculating the average queuing time of this run
-            for (n = 0; n < N; n++) {
-                avgQueuingTimes[r] += queuingTimes[n];
-            }
-            avgQueuingTimes[r] /= N;
-            n = 0;
-            // calculating the average queuing times per category of this run
-            for (int h = 0; h < H; h++) {
-                int k = 0;
-                while (k < N - 1 && queuingTimesCategory[h][k] != -1.0) {
-                    avgQueuingTimesCategory[h][r] += queuingTimesCategory[h][k];
-                    k++;
+                int count = Math.min(chunk, N - i);
+                for (int k = 0; k < count; k++) {
+                    int c = heap[0];
+                    int slot = (int) (writeIndex + k) & mask;
+                    times[slot] = nextArrival[c];
+                    categoryNumbers[slot] = c;
+                    nextArrival[c] = nextArrival[c] + nextInterarrival(c, interarrivals, used);
+                    siftDown(heap, 0, nextArrival);
                 }
-                avgQueuingTimesCategory[h][r] /= (k != 0 ? k : 1);
-            }
-            // calculating the average service times per category of this run
-            for (int h = 0; h < H; h++) {
-                int k = 0;
-                while (k < N - 1 && serviceTimesCategory[h][k] != -1.0) {
-                    avgServiceTimesCategory[h][r] += serviceTimesCategory[h][k];
-                    k++;
+                writeIndex += count;
+                i += count;
+                // publishing the slots written
+                tail.set(writeIndex);
+                if (consumerWaiting) {
+                    LockSupport.unpark(consumer);
                 }
-                avgServiceTimesCategory[h][r] /= (k != 0 ? k : 1);
             }
         }
-        // --------------------------------------------------------------------
-        // --------------------------------------------- Remaining Output Print
-        // one each line:
-        // End Time (average over R runs)
-        // Average Queuing Time (average over R runs)
-        // for each Category:
-        // - number of simulated Job of that Category
-        // - Average Queuing Time
-        // - Average service time of the simulated Jobs
-        // (all averages over R runs)
-        System.out.println(ET(R, endTimes));
-        System.out.println(AQT_all(R, avgQueuingTimes));
-        for (int h = 0; h < H; h++) {
-            System.out.println(cntCatJobs[h] / R + "," + AQT(R, avgQueuingTimesCategory, h)
-                    + "," + AST(R, avgServiceTimesCategory, h));
-        }
     }
 
     /**
-     * The roundRobin function selects the next server number using
-     * round-robin scheduling policy
-     * 
-     * @param K The total number of servers available
-     * @return The selected server number
+     * This method returns the next interarrival time of a Category, generating
+     * a new chunk of them when the previous one is used up
+     *
+     * @param c             the category number
+     * @param interarrivals the chunk of interarrival times of each Category
+     * @param used          the number of interarrival times already used of
+     *                      each chunk
+     * @return the next interarrival time of the Category
      */
-    private static int roundRobin(int K) {
-        selectedServerNumber = (selectedServerNumber + 1) % K;
-        return selectedServerNumber;
+    private double nextInterarrival(int c, double[][] interarrivals, int[] used) {
+        if (used[c] == chunk) {
+            for (int k = 0; k < chunk; k++) {
+                interarrivals[c][k] = categories[c].getInterarrivalTime();
+            }
+            used[c] = 0;
+        }
+        return interarrivals[c][used[c]++];
     }
 
     /**
-     * This custom scheduling policy selects the server with the shortest
-     * queue length or the first available Server if no Jobs are currently being
-     * executed
-     * 
-     * @param servers An array of Server objects, each of them with his
-     *                currently executing Job (if there is one), and his FIFO
-     *                queue containing the waiting Jobs
-     * @return the index of the Server with the best specified parameters
+     * This method restores the heap property moving down the k-th element
+     *
+     * @param heap        the heap of Category numbers
+     * @param k           the position of the element to move
+     * @param nextArrival the next arrival time of each Category
      */
-    private static int customSP_bad(Server[] servers) {
-        int minQueueLength = 0, s = 0;
-        for (int k = 0; k < servers.length; k++) {
-            if (servers[k].getJobInExecution() == null)
-                return k;
-            int queueLength = servers[k].getWaitingJobs().size();
-            if (queueLength <= minQueueLength) {
-                minQueueLength = queueLength;
-                s = k;
+    private static void siftDown(int[] heap, int k, double[] nextArrival) {
+        int c = heap[k];
+        while (2 * k + 1 < heap.length) {
+            int child = 2 * k + 1;
+            if (child + 1 < heap.length && nextArrival[heap[child + 1]] < nextArrival[heap[child]]) {
+                child++;
             }
+            if (nextArrival[heap[child]] >= nextArrival[c]) {
+                break;
+            }
+            heap[k] = heap[child];
+            k = child;
         }
-        return s;
+        heap[k] = c;
     }
 
     /**
-     * This custom scheduling policy selects the best Server based on eligibility
-     * criteria of each Server. This consists in a function ƒ(𝑥,𝑦) = φ𝑥 + τy,
-     * where
-     * 𝑥 := "consecutive position of the next execution end Event" (in other
-     * words, a parameter that refers to "when the current executiong Job
-     * will finish compared to others servers")
-     * 𝑦 := "number of waiting Job in the queue"
-     * φ,τ ∈ [0,1] ⊂ ℝ are related weight
-     * 
-     * @param servers  An array of Server objects, each of them with his
-     *                 currently executing Job (if there is one), and his FIFO
-     *                 queue containing the waiting Jobs
-     * @param timeLine The next upcoming Events in the simulation
-     * @return the index of the server with the lowest eligibility value
+     * This method waits until the next arrival is available: it busy-waits for
+     * a while, then parks until the producer publishes more slots
+     *
+     * @throws IllegalStateException if the producer thread failed
      */
-    private static int customSP_good(Server[] servers, PriorityQueue<Event> timeLine) {
-        final double phi = 0.4, tau = 0.6;
-        int x = 0, y;
-        Iterator<Event> nextEvents = timeLine.iterator();
-        while (nextEvents.hasNext() && x < servers.length) {
-            Event e = nextEvents.next();
-            // for each 'end of execution' Event
-            if (e.getEventType() == true) {
-                // scheduled server search
-                int k = 0;
-                while (k < servers.length && servers[k].getJobInExecution() != e.getAssociatedJob()) {
-                    k++;
-                }
-                // setting the x parameter as specified,
-                // the lowest the value -> the best eligibility
-                x++;
-                // setting the y parameter as specified,
-                // the lowest the value -> the best eligibility
-                y = servers[k].getWaitingJobs().size();
-                servers[k].setEligibility(phi * x + tau * y);
+    private void waitForArrival() {
+        for (int spins = 0; readIndex == availableIndex; spins++) {
+            availableIndex = tail.get();
+            if (readIndex != availableIndex) {
+                break;
             }
-        }
-        // all Servers unviewed are checked to find possible free Server
-        // if it happens, it has the best eligibility
-        for (Server s : servers) {
-            if (s.getEligibility() == Double.POSITIVE_INFINITY) {
-                if (s.getJobInExecution() == null) {
-                    s.setEligibility(0);
-                }
+            if (failure != null) {
+                throw new IllegalStateException("The arrival producer failed!", failure);
             }
-        }
-        double bestEligibility = Double.POSITIVE_INFINITY;
-        int bestServer = 0;
-        // searching the Server with the best eligibility
-        for (int k = 0; k < servers.length; k++) {
-            if (servers[k].getEligibility() <= bestEligibility) {
-                bestEligibility = servers[k].getEligibility();
-                bestServer = k;
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                consumerWaiting = true;
+                // the producer may be waiting for the slots already read
+                releaseSlots();
+                if (tail.get() == readIndex && failure == null) {
+                    LockSupport.park(this);
+                }
+                consumerWaiting = false;
             }
         }
-        return bestServer;
     }
 
     /**
-     * This function calculates the average of a given array of end times.
-     * 
-     * @param R        the number of end times (number or repetitions)
-     * @param endTimes an array of end times, one value for each repetition
-     * @return the average of the end times.
+     * This method publishes the slots read to the producer, unparking it if
+     * it is waiting for them
      */
-    private static double ET(int R, double[] endTimes) {
-        double sumEndTime = 0;
-        for (int r = 0; r < R; r++) {
-            sumEndTime += endTimes[r];
+    private void releaseSlots() {
+        head.set(readIndex);
+        if (producerWaiting) {
+            LockSupport.unpark(producer);
         }
-        return sumEndTime / R;
     }
 
     /**
-     * This function calculates the average queuing time of a Job
-     * 
-     * @param R               the number of repetitions
-     * @param avgQueuingTimes an array of
-     *                        double values representing the average queuing times
-     *                        for each repetition.
-     *                        The length of the array is R, which is the total
-     *                        number of repetition.
-     * @return the total average queuing time for all repetitions
+     * This method returns the time of the next arrival, without consuming it
+     *
+     * @return the arrival time
      */
-    private static double AQT_all(int R, double[] avgQueuingTimes) {
-        double sumAvgTime = 0;
-        for (int r = 0; r < R; r++) {
-            sumAvgTime += avgQueuingTimes[r];
+    public double peekTime() {
+        waitForArrival();
+        return times[(int) readIndex & mask];
+    }
+
+    /**
+     * This method returns the Category of the next arrival, without consuming
+     * it
+     *
+     * @return the category number
+     */
+    public int peekCategory() {
+        waitForArrival();
+        return categoryNumbers[(int) readIndex & mask];
+    }
+
+    /**
+     * This method consumes the next arrival, releasing its slot
+     */
+    public void advance() {
+        readIndex++;
+        // the producer waits for a whole chunk, so waking it up once a
+        // chunk is enough
+        if (readIndex % chunk == 0) {
+            releaseSlots();
+        } else {
+            head.lazySet(readIndex);
         }
-        return sumAvgTime / R;
     }
+}
+
+// =============================================================================
+
+/**
+ * The ResultPublisher class writes the records of the streaming mode from its
+ * own thread. The simulation only appends the records to a lock-free queue,
+ * so it never waits for the consumer; each record is flushed as soon as it is
+ * written, so nothing already published is lost if the run is killed
+ */
+class ResultPublisher {
+    private PrintStream out;
+    private ConcurrentLinkedQueue<String> records;
+    private Thread writer;
+    private volatile boolean closed;
+    private volatile boolean stopRequested;
 
     /**
-     * The function calculates the average queuing time for a specific category
-     * based on the given average queuing times and the number of repetitions
-     * 
-     * @param R                       the number of repetitions
-     * @param avgQueuingTimesCategory matrix of doubles. It represents the average
-     *                                queuing times for
-     *                                different Categories throughout each
-     *                                repetition. One Category each row, the average
-     *                                queuing time for a repetition each column
-     * @param nCat                    the category number. It is used
-     *                                to access the specific row in the
-     *                                "avgQueuingTimesCategory" matrix
-     * @return the total average queuing time for a specific
-     *         category.
+     * This constructor initializes a new ResultPublisher object and starts
+     * its writer thread
+     *
+     * @param out the stream where the records are written, one each line
      */
-    private static double AQT(int R, double[][] avgQueuingTimesCategory, int nCat) {
-        double sumAvgTime = 0;
-        for (int r = 0; r < R; r++) {
-            sumAvgTime += avgQueuingTimesCategory[nCat][r];
+    public ResultPublisher(PrintStream out) {
+        this.out = out;
+        this.records = new ConcurrentLinkedQueue<String>();
+        this.writer = new Thread(this::write, "result-publisher");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * This method queues a record to be written, without waiting
+     *
+     * @param record the record, as a single JSON line
+     */
+    public void publish(String record) {
+        records.offer(record);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * This method is executed by the writer thread: it writes the queued
+     * records until the publisher is closed and the queue is empty
+     */
+    private void write() {
+        while (true) {
+            String record = records.poll();
+            if (record != null) {
+                out.println(record);
+                out.flush();
+            } else if (closed) {
+                // all the records were queued before closing
+                if (records.isEmpty()) {
+                    return;
+                }
+            } else {
+                LockSupport.park(this);
+            }
         }
-        return sumAvgTime / R;
     }
 
     /**
-     * The function calculates the average service time for a specific category
-     * based on the given average service times and the number of repetitions
-     * 
-     * @param R                       the number of repetitions
-     * @param avgServiceTimesCategory matrix of doubles. It represents the average
-     *                                service times for different Categories
-     *                                throughout each repetition. One Category each
-     *                                row, the average service time for a repetition
-     *                                each column
-     * @param nCat                    the category number. It is used to access
-     *                                the specific row in the
-     *                                "avgServiceTimesCategory" matrix
-     * @return the total average service time for a specific category.
+     * This method waits until all the queued records are written
      */
-    private static double AST(int R, double[][] avgServiceTimesCategory, int nCat) {
-        double sumAvgTime = 0;
-        for (int r = 0; r < R; r++) {
-            sumAvgTime += avgServiceTimesCategory[nCat][r];
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return sumAvgTime / R;
+        out.flush();
+    }
+
+    /**
+     * This method starts a thread which reads the consumer's commands: the
+     * line "stop" requests the end of the simulation after the current run
+     *
+     * @param in the stream from which the commands are read
+     */
+    public void listenForStop(InputStream in) {
+        Thread listener = new Thread(() -> {
+            BufferedReader commands = new BufferedReader(new InputStreamReader(in));
+            try {
+                String command;
+                while ((command = commands.readLine()) != null) {
+                    if (command.trim().equals("stop")) {
+                        requestStop();
+                    }
+                }
+            } catch (IOException e) {
+                // no more commands
+            }
+        }, "result-consumer");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * This method requests the end of the simulation after the current run
+     */
+    public void requestStop() {
+        this.stopRequested = true;
+    }
+
+    /**
+     * Getter for the stop requested field
+     *
+     * @return true if the consumer asked to stop the simulation
+     */
+    public boolean isStopRequested() {
+        return this.stopRequested;
     }
 }
 
-// =============================================================================
-// OTHER CLASSES
 // =============================================================================
 
 /**
@@ -670,6 +2683,9 @@ class Category {
     private Random serviceGenerator;
     private double lambdaArrival;
     private double lambdaService;
+    // number of values drawn from each generator
+    private long arrivalDraws;
+    private long serviceDraws;
 
     /**
      * This constructor initializes a new Category object with the given parameters
@@ -700,6 +2716,46 @@ class Category {
         return this.categoryNumber;
     }
 
+    /**
+     * Getter for the arrival draws field
+     *
+     * @return the value of "arrivalDraws" field as a long
+     */
+    public long getArrivalDraws() {
+        return this.arrivalDraws;
+    }
+
+    /**
+     * Getter for the service draws field
+     *
+     * @return the value of "serviceDraws" field as a long
+     */
+    public long getServiceDraws() {
+        return this.serviceDraws;
+    }
+
+    /**
+     * This method brings the random generators to the state they have after
+     * the given numbers of draws, drawing the missing values
+     *
+     * @param arrivalDraws the number of values drawn from the arrival
+     *                     generator
+     * @param serviceDraws the number of values drawn from the service
+     *                     generator
+     * @throws IllegalArgumentException if more values have already been drawn
+     */
+    public void skipTo(long arrivalDraws, long serviceDraws) {
+        if (arrivalDraws < this.arrivalDraws || serviceDraws < this.serviceDraws) {
+            throw new IllegalArgumentException("The generators are already past the given draws!");
+        }
+        for (; this.arrivalDraws < arrivalDraws; this.arrivalDraws++) {
+            arrivalGenerator.nextFloat();
+        }
+        for (; this.serviceDraws < serviceDraws; this.serviceDraws++) {
+            serviceGenerator.nextFloat();
+        }
+    }
+
     /**
      * This method calculates and returns a new interarrival time value,
      * generated using exponential distribution
@@ -708,6 +2764,7 @@ class Category {
      */
     public double getInterarrivalTime() {
         double alpha = arrivalGenerator.nextFloat();
+        arrivalDraws++;
         return -(1 / this.lambdaArrival) * Math.log(1 - alpha);
     }
 
@@ -719,6 +2776,7 @@ class Category {
      */
     public double getServiceTime() {
         double alpha = serviceGenerator.nextFloat();
+        serviceDraws++;
         return -(1 / this.lambdaService) * Math.log(1 - alpha);
     }
 }
@@ -734,6 +2792,10 @@ class Server {
     private Job jobInExecution;
     private Queue<Job> waitingJobs;
     private double eligibility;
+    private boolean fluid;
+    private double drainTime;
+    private double fluidWork;
+    private int fluidJobs;
 
     /**
      * This constructor initializes a new Server object with the given parameters
@@ -788,6 +2850,70 @@ class Server {
     public void setEligibility(double eligibility) {
         this.eligibility = eligibility;
     }
+
+    /**
+     * Getter for the fluid field
+     * @return true if the Server is in fluid mode, false otherwise
+     */
+    public boolean isFluid() {
+        return this.fluid;
+    }
+
+    /**
+     * Setter for the fluid field, it also resets the fluid work counters
+     * @param fluid true to switch the Server to fluid mode, false to go back
+     *              to the exact mode
+     */
+    public void setFluid(boolean fluid) {
+        this.fluid = fluid;
+        this.fluidWork = 0;
+        this.fluidJobs = 0;
+    }
+
+    /**
+     * Getter for the drain time field
+     * @return the instant at which all the work accepted in fluid mode is done
+     */
+    public double getDrainTime() {
+        return this.drainTime;
+    }
+
+    /**
+     * Setter for the drain time field
+     * @param drainTime the instant at which all the work accepted in fluid
+     *                  mode is done
+     */
+    public void setDrainTime(double drainTime) {
+        this.drainTime = drainTime;
+    }
+
+    /**
+     * This method adds a Job to the work accepted in fluid mode
+     * @param drainTime   the new drain time, at the end of the added Job
+     * @param serviceTime the service time of the added Job
+     */
+    public void addFluidJob(double drainTime, double serviceTime) {
+        this.drainTime = drainTime;
+        this.fluidWork += serviceTime;
+        this.fluidJobs++;
+    }
+
+    /**
+     * This method returns the number of Jobs waiting in the queue. In fluid
+     * mode it is estimated as the work still to be done over the average
+     * service time of the Jobs accepted
+     * @param time the current simulation time
+     * @return the (estimated) number of waiting Jobs
+     */
+    public int getBacklog(double time) {
+        if (!fluid) {
+            return this.waitingJobs.size();
+        }
+        if (fluidJobs == 0) {
+            return 0;
+        }
+        return (int) Math.ceil((drainTime - time) / (fluidWork / fluidJobs));
+    }
 }
 
 // =============================================================================
\ No newline at end of file